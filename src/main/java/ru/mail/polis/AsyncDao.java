@@ -0,0 +1,70 @@
+package ru.mail.polis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking facade over {@link Dao}.
+ * Reads run in the given executor, flush and compaction are delegated to
+ * {@link Dao#flushAsync()} and {@link Dao#compactAsync()}, so request threads never wait for disk I/O.
+ */
+public class AsyncDao<D, E extends Entry<D>> implements Closeable {
+
+    private final Dao<D, E> dao;
+    private final Executor readExecutor;
+
+    public AsyncDao(Dao<D, E> dao, Executor readExecutor) {
+        this.dao = dao;
+        this.readExecutor = readExecutor;
+    }
+
+    /**
+     * Returns entry by key, the lookup may touch disk so it runs in the read executor.
+     * @param key entry`s key
+     * @return future of entry (null if absent)
+     */
+    public CompletableFuture<E> getAsync(D key) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return dao.get(key);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, readExecutor);
+    }
+
+    /**
+     * Inserts or replaces entry. Upsert touches memory only, so it is applied in the calling thread.
+     * @param entry element to upsert
+     * @return future completed once entry is visible to readers
+     */
+    public CompletableFuture<Void> upsertAsync(E entry) {
+        try {
+            dao.upsert(entry);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public CompletableFuture<Void> flushAsync() {
+        return dao.flushAsync();
+    }
+
+    public CompletableFuture<Void> compactAsync() {
+        return dao.compactAsync();
+    }
+
+    public Dao<D, E> dao() {
+        return dao;
+    }
+
+    @Override
+    public void close() throws IOException {
+        dao.close();
+    }
+
+}
@@ -2,7 +2,44 @@ package ru.mail.polis;
 
 import java.nio.file.Path;
 
+/**
+ * Values of at least valueLogThresholdBytes are kept in value logs apart from keys, so compaction does not copy them,
+ * Long.MAX_VALUE keeps all values with keys.
+ */
 public record Config(
         Path basePath,
-        long flushThresholdBytes) {
+        long flushThresholdBytes,
+        Compression compression,
+        IndexLayout indexLayout,
+        long valueLogThresholdBytes) {
+
+    public Config(Path basePath, long flushThresholdBytes) {
+        this(basePath, flushThresholdBytes, Compression.NONE);
+    }
+
+    public Config(Path basePath, long flushThresholdBytes, Compression compression) {
+        this(basePath, flushThresholdBytes, compression, IndexLayout.SORTED);
+    }
+
+    public Config(Path basePath, long flushThresholdBytes, Compression compression, IndexLayout indexLayout) {
+        this(basePath, flushThresholdBytes, compression, indexLayout, Long.MAX_VALUE);
+    }
+
+    /**
+     * Compression of data written to disk, files written with another one stay readable.
+     */
+    public enum Compression {
+        NONE,
+        DEFLATE
+    }
+
+    /**
+     * Layout of the index of files written to disk, files written with another one stay readable.
+     * EYTZINGER adds a breadth-first copy of 8-byte key prefixes to the sorted index,
+     * so lookups touch fewer cache lines at the cost of 16 bytes per block.
+     */
+    public enum IndexLayout {
+        SORTED,
+        EYTZINGER
+    }
 }
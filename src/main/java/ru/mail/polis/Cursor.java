@@ -0,0 +1,34 @@
+package ru.mail.polis;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterator which holds resources (e.g. mapped files) until closed.
+ * Entries returned by the cursor may become invalid after it is closed.
+ */
+public interface Cursor<E> extends Iterator<E>, Closeable {
+
+    static <E> Cursor<E> of(Iterator<E> iterator) {
+        return new Cursor<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+                // Nothing to release
+            }
+        };
+    }
+
+    @Override
+    void close();
+
+}
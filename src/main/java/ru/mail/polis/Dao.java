@@ -2,7 +2,16 @@ package ru.mail.polis;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public interface Dao<D, E extends Entry<D>> extends Closeable {
 
@@ -14,6 +23,58 @@ public interface Dao<D, E extends Entry<D>> extends Closeable {
      */
     Iterator<E> get(D from, D to) throws IOException;
 
+    /**
+     * Returns ordered cursor of entries with keys between from (inclusive) and to (exclusive).
+     * Unlike {@link #get(Object, Object)} it should be closed after use to release resources early.
+     * @param from lower bound of range (inclusive)
+     * @param to upper bound of range (exclusive)
+     * @return entries [from;to)
+     */
+    default Cursor<E> cursor(D from, D to) throws IOException {
+        return Cursor.of(get(from, to));
+    }
+
+    /**
+     * Returns ordered stream of entries with keys between from (inclusive) and to (exclusive).
+     * Implementations may split the range for parallel processing.
+     * The stream should be closed after use to release resources early.
+     * Note: default implementation is sequential.
+     * @param from lower bound of range (inclusive)
+     * @param to upper bound of range (exclusive)
+     * @return entries [from;to)
+     */
+    default Stream<E> stream(D from, D to) throws IOException {
+        Cursor<E> cursor = cursor(from, to);
+        Spliterator<E> spliterator = Spliterators.spliteratorUnknownSize(
+                cursor,
+                Spliterator.ORDERED | Spliterator.NONNULL
+        );
+        return StreamSupport.stream(spliterator, false).onClose(cursor::close);
+    }
+
+    /**
+     * Returns iterator of entries with keys between from (inclusive) and to (exclusive) in descending order.
+     * Note: default implementation materializes the whole range.
+     * @param from lower bound of range (inclusive)
+     * @param to upper bound of range (exclusive)
+     * @return entries [from;to) from the greatest key to the least one
+     */
+    default Iterator<E> getDescending(D from, D to) throws IOException {
+        List<E> result = new ArrayList<>();
+        get(from, to).forEachRemaining(result::add);
+        Collections.reverse(result);
+        return result.iterator();
+    }
+
+    /**
+     * Returns ordered iterator of all entries with keys starting with prefix (not supported by default).
+     * @param prefix key prefix
+     * @return entries with key starting with prefix
+     */
+    default Iterator<E> prefix(D prefix) throws IOException {
+        throw new UnsupportedOperationException("Prefix scans are not supported");
+    }
+
     /**
      * Returns entry by key. Note: default implementation is far from optimal.
      * @param key entry`s key
@@ -31,6 +92,19 @@ public interface Dao<D, E extends Entry<D>> extends Closeable {
         return null;
     }
 
+    /**
+     * Returns entries by keys (one lookup per key by default).
+     * @param keys entries` keys
+     * @return entries in the order of keys, null for absent keys
+     */
+    default List<E> getAll(Collection<D> keys) throws IOException {
+        List<E> result = new ArrayList<>(keys.size());
+        for (D key : keys) {
+            result.add(get(key));
+        }
+        return result;
+    }
+
     /**
      * Returns ordered iterator of all entries with keys from (inclusive).
      * @param from lower bound of range (inclusive)
@@ -57,12 +131,84 @@ public interface Dao<D, E extends Entry<D>> extends Closeable {
         return get(null, null);
     }
 
+    /**
+     * Returns approximate count and size of entries with keys between from (inclusive) and to (exclusive)
+     * without iterating them (not supported by default).
+     * Deleted and overwritten entries may be counted too.
+     * @param from lower bound of range (inclusive)
+     * @param to upper bound of range (exclusive)
+     * @return estimate of [from;to)
+     */
+    default Estimate estimate(D from, D to) throws IOException {
+        throw new UnsupportedOperationException("Estimates are not supported");
+    }
+
+    /**
+     * Returns read-only point-in-time view of data (not supported by default).
+     * The view must be closed to release resources it holds.
+     * @return snapshot
+     */
+    default Dao<D, E> snapshot() throws IOException {
+        throw new UnsupportedOperationException("Snapshots are not supported");
+    }
+
     /**
      * Inserts of replaces entry.
      * @param entry element to upsert
      */
     void upsert(E entry);
 
+    /**
+     * Removes all entries with keys between from (inclusive) and to (exclusive) (not supported by default).
+     * Implementations should store it as a single record instead of a tombstone per key.
+     * @param from lower bound of range (inclusive)
+     * @param to upper bound of range (exclusive)
+     */
+    default void deleteRange(D from, D to) {
+        throw new UnsupportedOperationException("Range deletes are not supported");
+    }
+
+    /**
+     * Upserts entry value as an operand of the merge operator, it is applied to the current value lazily
+     * (not supported by default).
+     * @param operand element which value is the operand
+     */
+    default void merge(E operand) {
+        throw new UnsupportedOperationException("Merge operands are not supported");
+    }
+
+    /**
+     * Inserts or replaces all entries of the batch (one by one by default).
+     * Implementations may apply the batch atomically and at a lower per-entry cost.
+     * @param entries elements to upsert
+     */
+    default void upsertAll(Iterable<E> entries) {
+        for (E entry : entries) {
+            upsert(entry);
+        }
+    }
+
+    /**
+     * Atomically upserts entry if the current value of the key equals expected one (not supported by default).
+     * Values are compared by content, which only the implementation knows how to do for its data type.
+     * @param key entry`s key
+     * @param expectedValue expected current value, null means absent or removed entry
+     * @param newEntry element to upsert, it may be a tombstone
+     * @return true if entry was upserted
+     */
+    default boolean compareAndSet(D key, D expectedValue, E newEntry) throws IOException {
+        throw new UnsupportedOperationException("Conditional upserts are not supported");
+    }
+
+    /**
+     * Atomically inserts entry if there is no live entry with the same key (via compareAndSet by default).
+     * @param entry element to insert
+     * @return true if entry was inserted
+     */
+    default boolean putIfAbsent(E entry) throws IOException {
+        return compareAndSet(entry.key(), null, entry);
+    }
+
     /**
      * Persists data (no-op by default).
      */
@@ -77,6 +223,43 @@ public interface Dao<D, E extends Entry<D>> extends Closeable {
         // Do nothing
     }
 
+    /**
+     * Persists data without blocking the caller on disk I/O.
+     * Note: default implementation flushes in the calling thread.
+     * @return future completed once data is persisted
+     */
+    default CompletableFuture<Void> flushAsync() {
+        try {
+            flush();
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Compacts data without blocking the caller on disk I/O.
+     * Note: default implementation compacts in the calling thread.
+     * @return future completed once data is compacted
+     */
+    default CompletableFuture<Void> compactAsync() {
+        try {
+            compact();
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Verifies persisted data against its checksums in background reading at most bytesPerSecond
+     * (not supported by default).
+     * @return future failed with IOException if corrupted data is found
+     */
+    default CompletableFuture<Void> scrubAsync(long bytesPerSecond) {
+        throw new UnsupportedOperationException("Scrubs are not supported");
+    }
+
     /*
      * Releases Dao (calls flush by default).
      */
@@ -0,0 +1,6 @@
+package ru.mail.polis;
+
+public record Estimate(
+        long count,
+        long byteSize) {
+}
@@ -0,0 +1,28 @@
+package ru.mail.polis;
+
+/**
+ * Folds operands upserted by {@link Dao#merge(Entry)} into values, e.g. counter increments or list appends.
+ * Implementations must be pure functions, they may be applied lazily, more than once and in any thread.
+ */
+public interface MergeOperator<D> {
+
+    /**
+     * Applies operand to the value.
+     * @param value current value, null if the key is absent or removed
+     * @param operand operand to apply
+     * @return new value, null removes the key
+     */
+    D merge(D value, D operand);
+
+    /**
+     * Combines two operands when there is no value to apply them to yet (merges them as values by default).
+     * Operands can't remove the key, so null is rejected with NullPointerException.
+     * @param older operand upserted earlier
+     * @param newer operand upserted later
+     * @return operand equivalent to applying older and then newer (not null)
+     */
+    default D combine(D older, D newer) {
+        return merge(older, newer);
+    }
+
+}
@@ -0,0 +1,1007 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Entry;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// entries are grouped into blocks of about BLOCK_SIZE bytes, the sparse index keeps the first key of every block
+// instead of an offset per entry, so it is small and its binary search stays in cache
+// file structure:
+// (fileVersion)(entryCount)(flags)(blockCount)(indexStart)(metadataChecksum)(headerChecksum)|((block)...)
+// |((blockOffset)(firstEntryIndex)(firstKeyOffset)(firstKeyPrefix)...)(sharedSize)[((keyPrefix)(block)...)]
+// ((keySize/key)...)
+// |(prefixFilter)(keyFilter)[(lastKey)][(rangeTombstones)(rangeTombstonesStart)](footerStart)
+// block structure:
+// ((sharedSize/unsharedSize/unsharedKey)(valueKind)[(valueSize/value)]...)
+// ((restartOffset)(keyPrefix)...)(sharedSize)(restartCount)
+// sizes are varints, a key is stored as the size of the prefix shared with the previous key and the rest of it,
+// every RESTART_INTERVAL-th entry is a restart point with the whole key, so a block is searched by restarts
+// a key prefix is 8 bytes of the key after the size shared by all keys of the index (of the block)
+// as an unsigned big-endian long padded with zeros, so binary searches mostly compare longs
+// flags:
+// FLAG_COMPRESSED_BLOCKS - a block is stored as (rawSize)(deflatedBlock), or (rawSize)(block) if it is not smaller
+// FLAG_CHECKSUMS - a stored block is preceded by its CRC32C, checksums of the header and the rest of metadata are set
+// FLAG_EYTZINGER_INDEX - key prefixes of first keys with block numbers in Eytzinger order follow sharedSize
+// FLAG_VALUE_LOG - a value of the VALUE_POINTER kind is (logId)(offset)(valueSize) in ValueLogs
+// older versions are read as well, see VARINTS_VERSION and KEY_PREFIXES_VERSION
+final class BlockSSTable {
+
+    static final long VERSION = 3;
+    // sizes are longs before it, tombstones and operands are valueSize sentinels instead of a valueKind,
+    // and without FLAG_SHARED_KEY_PREFIXES a block is ((keySize/key/valueSize/value)...)
+    private static final long VARINTS_VERSION = 2;
+    // index records are (blockOffset)(firstEntryIndex)(firstKeyOffset) and restarts are (restartOffset) before it,
+    // sharedSize of the index is written with the Eytzinger index only
+    private static final long KEY_PREFIXES_VERSION = 3;
+    static final int HEADER_SIZE = Long.BYTES * 7;
+    // a block is closed by the first entry reaching the size, so an entry never spans blocks
+    static final long BLOCK_SIZE = 4096;
+    static final long RESTART_INTERVAL = 16;
+    private static final int INDEX_RECORD_SIZE = Long.BYTES * 4;
+    private static final int RESTART_RECORD_SIZE = Long.BYTES * 2;
+    // before KEY_PREFIXES_VERSION
+    private static final int PLAIN_INDEX_RECORD_SIZE = Long.BYTES * 3;
+    private static final int PLAIN_RESTART_RECORD_SIZE = Long.BYTES;
+    private static final int EYTZINGER_RECORD_SIZE = Long.BYTES * 2;
+    private static final byte VALUE = 0;
+    private static final byte TOMBSTONE = 1;
+    private static final byte OPERAND = 2;
+    private static final byte VALUE_POINTER = 3;
+    private static final long VALUE_POINTER_SIZE = 1 + 3L * Long.BYTES;
+
+    static final SSTableFormat FORMAT = new SSTableFormat() {
+        @Override
+        public MemorySegment firstKey(MemorySegment sstable) {
+            return BlockSSTable.firstKey(sstable);
+        }
+
+        @Override
+        public long entryIndex(MemorySegment sstable, MemorySegment key) {
+            return BlockSSTable.entryIndex(sstable, key);
+        }
+
+        @Override
+        public Entry<MemorySegment> entryAt(MemorySegment sstable, long index, ValueLogs valueLogs) {
+            return BlockSSTable.entryAt(sstable, index, valueLogs);
+        }
+
+        @Override
+        public long byteSize(MemorySegment sstable, long fromIndex, long toIndex) {
+            return entryOffset(sstable, toIndex) - entryOffset(sstable, fromIndex);
+        }
+
+        @Override
+        public Entry<MemorySegment> get(MemorySegment sstable, MemorySegment key, ValueLogs valueLogs) {
+            return BlockSSTable.get(sstable, key, valueLogs);
+        }
+
+        @Override
+        public void getAll(
+                MemorySegment sstable,
+                MemorySegment[] keys,
+                Entry<MemorySegment>[] results,
+                ValueLogs valueLogs,
+                Predicate<MemorySegment> mightContain) {
+            BlockSSTable.getAll(sstable, keys, results, valueLogs, mightContain);
+        }
+
+        @Override
+        public Iterator<Entry<MemorySegment>> iterate(
+                MemorySegment sstable,
+                long fromIndex,
+                long toIndex,
+                ValueLogs valueLogs) {
+            return BlockSSTable.iterate(sstable, fromIndex, toIndex, valueLogs);
+        }
+
+        @Override
+        public Iterator<Entry<MemorySegment>> iterateDescending(
+                MemorySegment sstable,
+                long fromIndex,
+                long toIndex,
+                ValueLogs valueLogs) {
+            return BlockSSTable.iterateDescending(sstable, fromIndex, toIndex, valueLogs);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> CHECKSUM_BUFFER = ThreadLocal.withInitial(() -> new byte[1 << 16]);
+
+    private BlockSSTable() {
+    }
+
+    private static long entryCount(MemorySegment sstable) {
+        return MemoryAccess.getLongAtOffset(sstable, 8);
+    }
+
+    static long blockCount(MemorySegment sstable) {
+        return MemoryAccess.getLongAtOffset(sstable, 24);
+    }
+
+    private static long indexStart(MemorySegment sstable) {
+        return MemoryAccess.getLongAtOffset(sstable, 32);
+    }
+
+    private static boolean hasKeyPrefixes(MemorySegment sstable) {
+        return MemoryAccess.getLongAtOffset(sstable, 0) >= KEY_PREFIXES_VERSION;
+    }
+
+    private static long indexRecordSize(MemorySegment sstable) {
+        return hasKeyPrefixes(sstable) ? INDEX_RECORD_SIZE : PLAIN_INDEX_RECORD_SIZE;
+    }
+
+    private static long indexRecord(MemorySegment sstable, long block) {
+        return indexStart(sstable) + block * indexRecordSize(sstable);
+    }
+
+    // block == blockCount points to the end of blocks
+    private static long blockOffset(MemorySegment sstable, long block) {
+        if (block == blockCount(sstable)) {
+            return indexStart(sstable);
+        }
+        return MemoryAccess.getLongAtOffset(sstable, indexRecord(sstable, block));
+    }
+
+    // block == blockCount points to the end of entries
+    private static long firstEntryIndex(MemorySegment sstable, long block) {
+        if (block == blockCount(sstable)) {
+            return entryCount(sstable);
+        }
+        return MemoryAccess.getLongAtOffset(sstable, indexRecord(sstable, block) + Long.BYTES);
+    }
+
+    private static MemorySegment firstKey(MemorySegment sstable, long block) {
+        long keyOffset = MemoryAccess.getLongAtOffset(sstable, indexRecord(sstable, block) + 2 * Long.BYTES);
+        return sstable.asSlice(keyOffset + Long.BYTES, MemoryAccess.getLongAtOffset(sstable, keyOffset));
+    }
+
+    // of the sstable, it must have entries
+    static MemorySegment firstKey(MemorySegment sstable) {
+        return firstKey(sstable, 0);
+    }
+
+    private static boolean hasEytzingerIndex(MemorySegment sstable) {
+        return (MemoryAccess.getLongAtOffset(sstable, 16) & Storage.FLAG_EYTZINGER_INDEX) != 0;
+    }
+
+    // right after index records
+    private static long sharedSizeOffset(MemorySegment sstable) {
+        return indexStart(sstable) + blockCount(sstable) * indexRecordSize(sstable);
+    }
+
+    // the record of the k-th node, the root is 1
+    private static long eytzingerRecord(MemorySegment sstable, long k) {
+        return sharedSizeOffset(sstable) + Long.BYTES + (k - 1) * EYTZINGER_RECORD_SIZE;
+    }
+
+    // the first block with the first key prefix greater (or not less) than keyPrefix, blockCount if there is none
+    private static long eytzingerBound(MemorySegment sstable, long keyPrefix, boolean greater) {
+        long count = blockCount(sstable);
+        long k = 1;
+        while (k <= count) {
+            int comparedResult = Long.compareUnsigned(
+                    MemoryAccess.getLongAtOffset(sstable, eytzingerRecord(sstable, k)), keyPrefix);
+            k = 2 * k + (comparedResult < 0 || greater && comparedResult == 0 ? 1 : 0);
+        }
+        // the last node where the search went left
+        k >>>= Long.numberOfTrailingZeros(~k) + 1;
+        return k == 0 ? count : MemoryAccess.getLongAtOffset(sstable, eytzingerRecord(sstable, k) + Long.BYTES);
+    }
+
+    // -1 or 1 if the key is before or after all keys starting with the shared prefix, 0 if it starts with it
+    private static int compareToShared(MemorySegment key, MemorySegment shared) {
+        long mismatch = key.mismatch(shared);
+        if (mismatch == -1 || mismatch == shared.byteSize()) {
+            return 0;
+        }
+        return MemorySegmentComparator.INSTANCE.compare(key, shared);
+    }
+
+    // the first 8 bytes of the key padded with zeros, keys with different prefixes compare as them
+    private static long keyPrefix(MemorySegment key) {
+        if (key.byteSize() >= Long.BYTES) {
+            return MemoryAccess.getLongAtOffset(key, 0, ByteOrder.BIG_ENDIAN);
+        }
+        long prefix = 0;
+        for (long i = 0; i < Long.BYTES; i++) {
+            long b = i < key.byteSize() ? MemoryAccess.getByteAtOffset(key, i) & 0xFFL : 0;
+            prefix = prefix << Byte.SIZE | b;
+        }
+        return prefix;
+    }
+
+    private static boolean hasChecksums(MemorySegment sstable) {
+        return (MemoryAccess.getLongAtOffset(sstable, 16) & Storage.FLAG_CHECKSUMS) != 0;
+    }
+
+    // including its checksum
+    static long blockByteSize(MemorySegment sstable, long block) {
+        return blockOffset(sstable, block + 1) - blockOffset(sstable, block);
+    }
+
+    // the block as it is written, without the checksum
+    private static MemorySegment storedBlock(MemorySegment sstable, long block) {
+        long checksumSize = hasChecksums(sstable) ? Long.BYTES : 0;
+        long offset = blockOffset(sstable, block);
+        return sstable.asSlice(offset + checksumSize, blockByteSize(sstable, block) - checksumSize);
+    }
+
+    // compressed blocks are inflated to heap
+    private static MemorySegment block(MemorySegment sstable, long block) {
+        MemorySegment stored = storedBlock(sstable, block);
+        if ((MemoryAccess.getLongAtOffset(sstable, 16) & Storage.FLAG_COMPRESSED_BLOCKS) == 0) {
+            return stored;
+        }
+        long rawSize = MemoryAccess.getLongAtOffset(stored, 0);
+        MemorySegment data = stored.asSlice(Long.BYTES);
+        return data.byteSize() == rawSize ? data : inflate(data, rawSize);
+    }
+
+    private static MemorySegment inflate(MemorySegment data, long rawSize) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        // buffers of shared segments can not be given to zip, the compressed block is small anyway
+        inflater.setInput(data.toByteArray());
+        byte[] raw = new byte[(int) rawSize];
+        try {
+            if (inflater.inflate(raw) != rawSize) {
+                throw new IllegalStateException("Corrupted block: expected " + rawSize + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted block", e);
+        }
+        return MemorySegment.ofArray(raw);
+    }
+
+    // buffers of shared segments can not be given to zip, so data is checksummed by chunks copied to heap
+    private static long checksum(MemorySegment data) {
+        byte[] buffer = CHECKSUM_BUFFER.get();
+        MemorySegment bufferSegment = MemorySegment.ofArray(buffer);
+        CRC32C crc = new CRC32C();
+        for (long offset = 0; offset < data.byteSize(); offset += buffer.length) {
+            int size = (int) Math.min(buffer.length, data.byteSize() - offset);
+            bufferSegment.asSlice(0, size).copyFrom(data.asSlice(offset, size));
+            crc.update(buffer, 0, size);
+        }
+        return crc.getValue();
+    }
+
+    // has to be called when the header and the footer are written
+    static void writeChecksums(MemorySegment sstable, long fileSize) {
+        long indexStart = indexStart(sstable);
+        MemoryAccess.setLongAtOffset(sstable, 40, checksum(sstable.asSlice(indexStart, fileSize - indexStart)));
+        MemoryAccess.setLongAtOffset(sstable, 48, checksum(sstable.asSlice(0, 48)));
+    }
+
+    // files without checksums are supposed to be valid
+    static boolean isHeaderValid(MemorySegment sstable) {
+        return !hasChecksums(sstable)
+                || sstable.byteSize() >= HEADER_SIZE
+                && MemoryAccess.getLongAtOffset(sstable, 48) == checksum(sstable.asSlice(0, 48));
+    }
+
+    // the index and the footer, the header has to be valid
+    static boolean isMetadataValid(MemorySegment sstable) {
+        if (!hasChecksums(sstable)) {
+            return true;
+        }
+        long indexStart = indexStart(sstable);
+        return indexStart >= HEADER_SIZE && indexStart <= sstable.byteSize()
+                && MemoryAccess.getLongAtOffset(sstable, 40) == checksum(sstable.asSlice(indexStart));
+    }
+
+    static boolean isBlockValid(MemorySegment sstable, long block) {
+        return !hasChecksums(sstable)
+                || MemoryAccess.getLongAtOffset(sstable, blockOffset(sstable, block))
+                == checksum(storedBlock(sstable, block));
+    }
+
+    // the block containing the entry
+    private static long blockOf(MemorySegment sstable, long index) {
+        long left = 0;
+        long right = blockCount(sstable) - 1;
+        while (left <= right) {
+            long mid = (left + right) >>> 1;
+            if (firstEntryIndex(sstable, mid) <= index) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return right;
+    }
+
+    // the last block starting not after the key, -1 if there is none
+    private static long blockBefore(MemorySegment sstable, MemorySegment key) {
+        return blockBefore(sstable, key, 0);
+    }
+
+    // the same, searched from fromBlock, which has to start not after the key
+    private static long blockBefore(MemorySegment sstable, MemorySegment key, long fromBlock) {
+        long left = fromBlock;
+        long right = blockCount(sstable) - 1;
+        boolean keyPrefixes = hasKeyPrefixes(sstable);
+        long keyPrefix = 0;
+        if (right >= 0 && (keyPrefixes || hasEytzingerIndex(sstable))) {
+            MemorySegment shared = firstKey(sstable, 0)
+                    .asSlice(0, MemoryAccess.getLongAtOffset(sstable, sharedSizeOffset(sstable)));
+            int comparedResult = compareToShared(key, shared);
+            if (comparedResult != 0) {
+                // the key is before or after all first keys
+                return comparedResult < 0 ? -1 : right;
+            }
+            keyPrefix = keyPrefix(key.asSlice(shared.byteSize()));
+        }
+        if (right >= 0 && hasEytzingerIndex(sstable)) {
+            // blocks with a less prefix start before the key and ones with a greater prefix start after it,
+            // only blocks with an equal prefix are left to compare keys
+            left = Math.max(left, eytzingerBound(sstable, keyPrefix, false));
+            right = eytzingerBound(sstable, keyPrefix, true) - 1;
+        }
+        while (left <= right) {
+            long mid = (left + right) >>> 1;
+            int comparedResult = 0;
+            if (keyPrefixes) {
+                comparedResult = Long.compareUnsigned(keyPrefix,
+                        MemoryAccess.getLongAtOffset(sstable, indexRecord(sstable, mid) + 3 * Long.BYTES));
+            }
+            if (comparedResult == 0) {
+                comparedResult = MemorySegmentComparator.INSTANCE.compare(key, firstKey(sstable, mid));
+            }
+            if (comparedResult >= 0) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return right;
+    }
+
+    // the entry with the key or null, the block is read once
+    static Entry<MemorySegment> get(MemorySegment sstable, MemorySegment key, ValueLogs valueLogs) {
+        long block = blockBefore(sstable, key);
+        if (block < 0) {
+            return null;
+        }
+        return new BlockReader(sstable, block, valueLogs).find(key);
+    }
+
+    // keys are sorted, so every block is searched from the block of the previous key
+    // and keys of the same block are read forward by one reader, the block is inflated once
+    static void getAll(
+            MemorySegment sstable,
+            MemorySegment[] keys,
+            Entry<MemorySegment>[] results,
+            ValueLogs valueLogs,
+            Predicate<MemorySegment> mightContain) {
+        long block = -1;
+        BlockReader reader = null;
+        for (int k = 0; k < keys.length; k++) {
+            if (results[k] != null || !mightContain.test(keys[k])) {
+                continue;
+            }
+            long keyBlock = blockBefore(sstable, keys[k], Math.max(block, 0));
+            if (keyBlock < 0) {
+                continue;
+            }
+            if (keyBlock != block) {
+                block = keyBlock;
+                reader = new BlockReader(sstable, block, valueLogs);
+            }
+            results[k] = reader.find(keys[k]);
+        }
+    }
+
+    // index of the key or ~(index of the first greater key), like binary search in the dense index
+    static long entryIndex(MemorySegment sstable, MemorySegment key) {
+        long block = blockBefore(sstable, key);
+        if (block < 0) {
+            return ~0L;
+        }
+
+        // values are not read
+        BlockReader reader = new BlockReader(sstable, block, null);
+        reader.seek(reader.restartBefore(key) * RESTART_INTERVAL);
+        long index = firstEntryIndex(sstable, block) + reader.position;
+        while (reader.hasNext()) {
+            reader.advance();
+            int comparedResult = MemorySegmentComparator.INSTANCE.compare(key, reader.key());
+            if (comparedResult == 0) {
+                return index;
+            }
+            if (comparedResult < 0) {
+                break;
+            }
+            index++;
+        }
+        return ~index;
+    }
+
+    static Entry<MemorySegment> entryAt(MemorySegment sstable, long index, ValueLogs valueLogs) {
+        long block = blockOf(sstable, index);
+        BlockReader reader = new BlockReader(sstable, block, valueLogs);
+        reader.seek(index - firstEntryIndex(sstable, block));
+        return reader.next();
+    }
+
+    // index == entryCount points to the end of entries
+    // entries of a block are supposed to be of the same size, the index does not know their offsets
+    static long entryOffset(MemorySegment sstable, long index) {
+        if (index >= entryCount(sstable)) {
+            return indexStart(sstable);
+        }
+        long block = blockOf(sstable, index);
+        long first = firstEntryIndex(sstable, block);
+        long start = blockOffset(sstable, block);
+        long size = blockOffset(sstable, block + 1) - start;
+        return start + size * (index - first) / (firstEntryIndex(sstable, block + 1) - first);
+    }
+
+    // entries [fromIndex; toIndex), every block is read once
+    static Iterator<Entry<MemorySegment>> iterate(
+            MemorySegment sstable,
+            long fromIndex,
+            long toIndex,
+            ValueLogs valueLogs) {
+        if (fromIndex >= toIndex) {
+            return Collections.emptyIterator();
+        }
+        long fromBlock = blockOf(sstable, fromIndex);
+        BlockReader fromReader = new BlockReader(sstable, fromBlock, valueLogs);
+        fromReader.seek(fromIndex - firstEntryIndex(sstable, fromBlock));
+
+        return new Iterator<>() {
+            long pos = fromIndex;
+            long block = fromBlock;
+            BlockReader reader = fromReader;
+
+            @Override
+            public boolean hasNext() {
+                return pos < toIndex;
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                if (!reader.hasNext()) {
+                    block++;
+                    reader = new BlockReader(sstable, block, valueLogs);
+                }
+                pos++;
+                return reader.next();
+            }
+        };
+    }
+
+    // entries [fromIndex; toIndex) from the last one, records can be read forward only,
+    // so every block is read into a list once
+    static Iterator<Entry<MemorySegment>> iterateDescending(
+            MemorySegment sstable,
+            long fromIndex,
+            long toIndex,
+            ValueLogs valueLogs) {
+        return new Iterator<>() {
+            long pos = toIndex - 1;
+            long blockStart = Long.MAX_VALUE;
+            List<Entry<MemorySegment>> entries;
+
+            @Override
+            public boolean hasNext() {
+                return pos >= fromIndex;
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                if (pos < blockStart) {
+                    long block = blockOf(sstable, pos);
+                    blockStart = firstEntryIndex(sstable, block);
+                    entries = entries(new BlockReader(sstable, block, valueLogs));
+                }
+                Entry<MemorySegment> entry = entries.get((int) (pos - blockStart));
+                pos--;
+                return entry;
+            }
+        };
+    }
+
+    private static List<Entry<MemorySegment>> entries(BlockReader reader) {
+        List<Entry<MemorySegment>> entries = new ArrayList<>();
+        while (reader.hasNext()) {
+            entries.add(reader.next());
+        }
+        return entries;
+    }
+
+    // (valueKind)[(valueSize/value)] part of the record
+    private static long valueSize(Entry<MemorySegment> entry) {
+        if (entry.value() == null) {
+            return 1;
+        }
+        if (entry instanceof ValueLogEntry) {
+            return VALUE_POINTER_SIZE;
+        }
+        long size = entry.value().byteSize();
+        return 1 + Varint.size(size) + size;
+    }
+
+    private static long writeValue(MemorySegment sstable, long offset, Entry<MemorySegment> entry) {
+        if (entry.value() == null) {
+            MemoryAccess.setByteAtOffset(sstable, offset, TOMBSTONE);
+            return 1;
+        }
+        if (entry instanceof ValueLogEntry pointer) {
+            MemoryAccess.setByteAtOffset(sstable, offset, VALUE_POINTER);
+            MemoryAccess.setLongAtOffset(sstable, offset + 1, pointer.logId());
+            MemoryAccess.setLongAtOffset(sstable, offset + 1 + Long.BYTES, pointer.offset());
+            MemoryAccess.setLongAtOffset(sstable, offset + 1 + 2 * Long.BYTES, pointer.value().byteSize());
+            return VALUE_POINTER_SIZE;
+        }
+        MemoryAccess.setByteAtOffset(sstable, offset, entry instanceof OperandEntry ? OPERAND : VALUE);
+        long size = entry.value().byteSize();
+        long valueStart = offset + 1 + Varint.write(sstable, offset + 1, size);
+        sstable.asSlice(valueStart, size).copyFrom(entry.value());
+        return valueStart + size - offset;
+    }
+
+    private static Entry<MemorySegment> readEntry(
+            MemorySegment key,
+            MemorySegment block,
+            long valueOffset,
+            ValueLogs valueLogs) {
+        byte kind = MemoryAccess.getByteAtOffset(block, valueOffset);
+        if (kind == TOMBSTONE) {
+            return new BaseEntry<>(key, null);
+        }
+        if (kind == VALUE_POINTER) {
+            return new BaseEntry<>(key, valueLogs.value(
+                    MemoryAccess.getLongAtOffset(block, valueOffset + 1),
+                    MemoryAccess.getLongAtOffset(block, valueOffset + 1 + Long.BYTES),
+                    MemoryAccess.getLongAtOffset(block, valueOffset + 1 + 2 * Long.BYTES)
+            ));
+        }
+        long size = Varint.read(block, valueOffset + 1);
+        MemorySegment value = block.asSlice(valueOffset + 1 + Varint.size(size), size);
+        return kind == OPERAND ? new OperandEntry(key, value) : new BaseEntry<>(key, value);
+    }
+
+    private static long valueRecordSize(MemorySegment block, long valueOffset) {
+        byte kind = MemoryAccess.getByteAtOffset(block, valueOffset);
+        if (kind == TOMBSTONE) {
+            return 1;
+        }
+        if (kind == VALUE_POINTER) {
+            return VALUE_POINTER_SIZE;
+        }
+        long size = Varint.read(block, valueOffset + 1);
+        return 1 + Varint.size(size) + size;
+    }
+
+    private static long sharedPrefix(MemorySegment previousKey, MemorySegment key) {
+        long mismatch = previousKey.mismatch(key);
+        return mismatch == -1 ? key.byteSize() : mismatch;
+    }
+
+    private static long restartsSize(long entriesCount) {
+        return (entriesCount + RESTART_INTERVAL - 1) / RESTART_INTERVAL * RESTART_RECORD_SIZE + 2 * Long.BYTES;
+    }
+
+    // reads entries of a block forward, keys with shared prefixes are restored from the previous one
+    // into a reused buffer, so skipped entries are not allocated
+    private static final class BlockReader {
+        private final MemorySegment block;
+        // null if values are not read
+        private final ValueLogs valueLogs;
+        private final boolean sharedPrefixes;
+        // implies shared prefixes
+        private final boolean varints;
+        private final boolean keyPrefixes;
+        private final long restartCount;
+        // end of entries
+        private final long end;
+        private long offset;
+        // of the next entry in the block
+        private long position;
+        private MemorySegment key;
+        private long valueOffset;
+        private byte[] keyBuffer = new byte[0];
+        // key is a slice of keyBuffer, not of the block
+        private boolean keyInBuffer;
+
+        BlockReader(MemorySegment sstable, long block, ValueLogs valueLogs) {
+            this.block = block(sstable, block);
+            this.valueLogs = valueLogs;
+            this.sharedPrefixes = (MemoryAccess.getLongAtOffset(sstable, 16) & Storage.FLAG_SHARED_KEY_PREFIXES) != 0;
+            this.varints = MemoryAccess.getLongAtOffset(sstable, 0) >= VARINTS_VERSION;
+            this.keyPrefixes = hasKeyPrefixes(sstable);
+            if (sharedPrefixes) {
+                restartCount = MemoryAccess.getLongAtOffset(this.block, this.block.byteSize() - Long.BYTES);
+                end = keyPrefixes
+                        ? this.block.byteSize() - restartCount * RESTART_RECORD_SIZE - 2 * Long.BYTES
+                        : this.block.byteSize() - restartCount * PLAIN_RESTART_RECORD_SIZE - Long.BYTES;
+            } else {
+                // the first entry is the only restart point
+                restartCount = 1;
+                end = this.block.byteSize();
+            }
+        }
+
+        boolean hasNext() {
+            return offset < end;
+        }
+
+        Entry<MemorySegment> next() {
+            advance();
+            return entry();
+        }
+
+        // moves to the next entry without reading its value
+        void advance() {
+            if (varints) {
+                long shared = Varint.read(block, offset);
+                long unsharedOffset = offset + Varint.size(shared);
+                long unsharedSize = Varint.read(block, unsharedOffset);
+                unsharedOffset += Varint.size(unsharedSize);
+                valueOffset = unsharedOffset + unsharedSize;
+                setKey(shared, block.asSlice(unsharedOffset, unsharedSize));
+                offset = valueOffset + valueRecordSize(block, valueOffset);
+            } else if (sharedPrefixes) {
+                long sizes = MemoryAccess.getLongAtOffset(block, offset);
+                MemorySegment unshared = block.asSlice(offset + Long.BYTES, sizes & 0xFFFFFFFFL);
+                valueOffset = offset + Long.BYTES + unshared.byteSize();
+                setKey(sizes >>> Integer.SIZE, unshared);
+                offset = valueOffset + Storage.valueRecordSize(block, valueOffset);
+            } else {
+                key = Storage.keyAt(block, offset);
+                valueOffset = offset + Long.BYTES + key.byteSize();
+                offset = valueOffset + Storage.valueRecordSize(block, valueOffset);
+            }
+            position++;
+        }
+
+        // of the current entry, valid until the next advance
+        MemorySegment key() {
+            return key;
+        }
+
+        Entry<MemorySegment> entry() {
+            MemorySegment entryKey = keyInBuffer ? MemorySegment.ofArray(key.toByteArray()) : key;
+            if (varints) {
+                return readEntry(entryKey, block, valueOffset, valueLogs);
+            }
+            return Storage.readEntry(entryKey, block, valueOffset);
+        }
+
+        private void setKey(long shared, MemorySegment unshared) {
+            if (shared == 0) {
+                key = unshared;
+                keyInBuffer = false;
+            } else {
+                restoreKey(shared, unshared);
+            }
+        }
+
+        private void restoreKey(long shared, MemorySegment unshared) {
+            int size = (int) (shared + unshared.byteSize());
+            if (keyBuffer.length < size) {
+                // the prefix of the previous key is kept
+                keyBuffer = Arrays.copyOf(keyBuffer, Math.max(size, keyBuffer.length * 2));
+                if (keyInBuffer) {
+                    key = MemorySegment.ofArray(keyBuffer).asSlice(0, key.byteSize());
+                }
+            }
+            MemorySegment buffer = MemorySegment.ofArray(keyBuffer);
+            if (!keyInBuffer) {
+                buffer.asSlice(0, shared).copyFrom(key.asSlice(0, shared));
+            }
+            buffer.asSlice(shared, unshared.byteSize()).copyFrom(unshared);
+            key = buffer.asSlice(0, size);
+            keyInBuffer = true;
+        }
+
+        // the entry with the key or null, entries are read forward from the current one,
+        // so keys searched by one reader have to be sorted
+        Entry<MemorySegment> find(MemorySegment searchedKey) {
+            long restart = restartBefore(searchedKey) * RESTART_INTERVAL;
+            if (restart >= position) {
+                seek(restart);
+            } else {
+                // the current entry is the first one not less than the previous key
+                int comparedResult = MemorySegmentComparator.INSTANCE.compare(searchedKey, key);
+                if (comparedResult <= 0) {
+                    return comparedResult == 0 ? entry() : null;
+                }
+            }
+            while (hasNext()) {
+                advance();
+                int comparedResult = MemorySegmentComparator.INSTANCE.compare(searchedKey, key);
+                if (comparedResult == 0) {
+                    return entry();
+                }
+                if (comparedResult < 0) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        // the next entry will be the one at the position
+        void seek(long position) {
+            long restart = Math.min(position / RESTART_INTERVAL, restartCount - 1);
+            offset = restartOffset(restart);
+            this.position = restart * RESTART_INTERVAL;
+            while (this.position < position) {
+                advance();
+            }
+        }
+
+        // the last restart point with the key not greater than the given one, 0 if there is none
+        long restartBefore(MemorySegment key) {
+            long left = 1;
+            long right = restartCount - 1;
+            long keyPrefix = 0;
+            if (keyPrefixes) {
+                long sharedSize = MemoryAccess.getLongAtOffset(block, block.byteSize() - 2 * Long.BYTES);
+                int comparedResult = compareToShared(key, restartKey(restartOffset(0)).asSlice(0, sharedSize));
+                if (comparedResult != 0) {
+                    // the key is before or after all restart keys
+                    return comparedResult < 0 ? 0 : right;
+                }
+                keyPrefix = keyPrefix(key.asSlice(sharedSize));
+            }
+            while (left <= right) {
+                long mid = (left + right) >>> 1;
+                int comparedResult = 0;
+                if (keyPrefixes) {
+                    comparedResult = Long.compareUnsigned(keyPrefix,
+                            MemoryAccess.getLongAtOffset(block, end + mid * RESTART_RECORD_SIZE + Long.BYTES));
+                }
+                if (comparedResult == 0) {
+                    comparedResult = MemorySegmentComparator.INSTANCE.compare(key, restartKey(restartOffset(mid)));
+                }
+                if (comparedResult >= 0) {
+                    left = mid + 1;
+                } else {
+                    right = mid - 1;
+                }
+            }
+            return right;
+        }
+
+        // shared size of a restart is 0
+        private MemorySegment restartKey(long restartOffset) {
+            if (!varints) {
+                // it is read as keySize
+                return Storage.keyAt(block, restartOffset);
+            }
+            long keyOffset = restartOffset + Varint.size(0);
+            long keySize = Varint.read(block, keyOffset);
+            return block.asSlice(keyOffset + Varint.size(keySize), keySize);
+        }
+
+        private long restartOffset(long restart) {
+            if (!sharedPrefixes) {
+                return 0;
+            }
+            long restartRecordSize = keyPrefixes ? RESTART_RECORD_SIZE : PLAIN_RESTART_RECORD_SIZE;
+            return MemoryAccess.getLongAtOffset(block, end + restart * restartRecordSize);
+        }
+    }
+
+    // splits entries into blocks, so both passes of Storage.save see the same layout
+    static final class Layout {
+        private final boolean compressed;
+        private final boolean eytzingerIndex;
+        private long blockCount;
+        private long blockSize = BLOCK_SIZE;
+        private long blockEntries;
+        // blocks without restarts of the last one
+        private long dataSize;
+        private long indexKeysSize;
+        private MemorySegment previousKey;
+        private long shared;
+
+        Layout(boolean compressed, boolean eytzingerIndex) {
+            this.compressed = compressed;
+            this.eytzingerIndex = eytzingerIndex;
+        }
+
+        // true if the entry starts a new block
+        boolean add(Entry<MemorySegment> entry) {
+            boolean newBlock = blockSize >= BLOCK_SIZE;
+            if (newBlock) {
+                if (blockCount > 0) {
+                    dataSize += restartsSize(blockEntries);
+                }
+                blockCount++;
+                blockSize = 0;
+                blockEntries = 0;
+                indexKeysSize += Long.BYTES + entry.key().byteSize();
+            }
+            shared = isRestart() ? 0 : sharedPrefix(previousKey, entry.key());
+            long unsharedSize = entry.key().byteSize() - shared;
+            long size = Varint.size(shared) + Varint.size(unsharedSize) + unsharedSize + valueSize(entry);
+            blockSize += size;
+            dataSize += size;
+            blockEntries++;
+            previousKey = entry.key();
+            return newBlock;
+        }
+
+        // of the last added entry
+        private boolean isRestart() {
+            return blockEntries % RESTART_INTERVAL == 0;
+        }
+
+        // with checksums and raw sizes of compressed blocks
+        private long blocksSize() {
+            long blocksSize = blockCount == 0 ? 0 : dataSize + restartsSize(blockEntries) + blockCount * Long.BYTES;
+            return compressed ? blocksSize + blockCount * Long.BYTES : blocksSize;
+        }
+
+        // blocks and the index, compressed blocks only get smaller
+        long maxByteSize() {
+            long indexSize = blockCount * INDEX_RECORD_SIZE + Long.BYTES + indexKeysSize;
+            if (eytzingerIndex) {
+                indexSize += blockCount * EYTZINGER_RECORD_SIZE;
+            }
+            return blocksSize() + indexSize;
+        }
+    }
+
+    // writes blocks right after the header and the index after them, blocks get checksums
+    static final class Writer {
+        private final MemorySegment sstable;
+        private final Layout layout;
+        // null if blocks are not compressed
+        private final Deflater deflater;
+        private final boolean eytzingerIndex;
+        private final List<Long> restarts = new ArrayList<>();
+        private final List<MemorySegment> restartKeys = new ArrayList<>();
+        private final List<Long> blockOffsets = new ArrayList<>();
+        private final List<Long> firstEntryIndexes = new ArrayList<>();
+        private final List<MemorySegment> firstKeys = new ArrayList<>();
+        private byte[] compressed = new byte[0];
+        private long offset = HEADER_SIZE;
+        private long blockStart;
+        private long dataStart;
+        private long index;
+
+        Writer(MemorySegment sstable, boolean compressed, boolean eytzingerIndex) {
+            this.sstable = sstable;
+            this.layout = new Layout(compressed, eytzingerIndex);
+            this.deflater = compressed ? new Deflater() : null;
+            this.eytzingerIndex = eytzingerIndex;
+        }
+
+        void add(Entry<MemorySegment> entry) {
+            if (layout.add(entry)) {
+                finishBlock();
+                blockOffsets.add(offset);
+                firstEntryIndexes.add(index);
+                firstKeys.add(entry.key());
+                blockStart = offset;
+                // checksum and rawSize go first
+                dataStart = deflater == null ? offset + Long.BYTES : offset + 2 * Long.BYTES;
+                offset = dataStart;
+            }
+            // layout counts the added entry already
+            if ((layout.blockEntries - 1) % RESTART_INTERVAL == 0) {
+                restarts.add(offset - dataStart);
+                restartKeys.add(entry.key());
+            }
+            MemorySegment unshared = entry.key().asSlice(layout.shared);
+            offset += Varint.write(sstable, offset, layout.shared);
+            offset += Varint.write(sstable, offset, unshared.byteSize());
+            sstable.asSlice(offset, unshared.byteSize()).copyFrom(unshared);
+            offset += unshared.byteSize();
+            offset += writeValue(sstable, offset, entry);
+            index++;
+        }
+
+        // writes the index, returns the end of it
+        long finish() {
+            finishBlock();
+            if (deflater != null) {
+                deflater.end();
+            }
+            long indexStart = offset;
+            long sharedSizeOffset = indexStart + blockOffsets.size() * (long) INDEX_RECORD_SIZE;
+            long sharedSize = sharedSize(firstKeys);
+            MemoryAccess.setLongAtOffset(sstable, sharedSizeOffset, sharedSize);
+            long keyOffset = sharedSizeOffset + Long.BYTES;
+            if (eytzingerIndex) {
+                writeEytzinger(keyOffset, sharedSize, 1, 0);
+                keyOffset += blockOffsets.size() * (long) EYTZINGER_RECORD_SIZE;
+            }
+            for (int i = 0; i < blockOffsets.size(); i++) {
+                long indexRecord = indexStart + i * (long) INDEX_RECORD_SIZE;
+                MemorySegment firstKey = firstKeys.get(i);
+                MemoryAccess.setLongAtOffset(sstable, indexRecord, blockOffsets.get(i));
+                MemoryAccess.setLongAtOffset(sstable, indexRecord + Long.BYTES, firstEntryIndexes.get(i));
+                MemoryAccess.setLongAtOffset(sstable, indexRecord + 2 * Long.BYTES, keyOffset);
+                MemoryAccess.setLongAtOffset(sstable, indexRecord + 3 * Long.BYTES,
+                        keyPrefix(firstKey.asSlice(sharedSize)));
+                keyOffset += Storage.writeRecord(sstable, keyOffset, firstKey);
+            }
+            MemoryAccess.setLongAtOffset(sstable, 24, blockOffsets.size());
+            MemoryAccess.setLongAtOffset(sstable, 32, indexStart);
+            return keyOffset;
+        }
+
+        // of sorted different keys, it is shared by all keys between the first and the last one
+        private static long sharedSize(List<MemorySegment> keys) {
+            if (keys.size() < 2) {
+                return 0;
+            }
+            return keys.get(0).mismatch(keys.get(keys.size() - 1));
+        }
+
+        // writes the subtree of the k-th node in order from the block, returns the block after the subtree
+        private int writeEytzinger(long recordsStart, long sharedSize, long k, int block) {
+            if (k > blockOffsets.size()) {
+                return block;
+            }
+            int nodeBlock = writeEytzinger(recordsStart, sharedSize, 2 * k, block);
+            long record = recordsStart + (k - 1) * EYTZINGER_RECORD_SIZE;
+            MemoryAccess.setLongAtOffset(sstable, record, keyPrefix(firstKeys.get(nodeBlock).asSlice(sharedSize)));
+            MemoryAccess.setLongAtOffset(sstable, record + Long.BYTES, nodeBlock);
+            return writeEytzinger(recordsStart, sharedSize, 2 * k + 1, nodeBlock + 1);
+        }
+
+        // writes restarts of the current block, compresses it in place and checksums
+        private void finishBlock() {
+            if (restarts.isEmpty()) {
+                return;
+            }
+            long sharedSize = sharedSize(restartKeys);
+            for (int i = 0; i < restarts.size(); i++) {
+                MemoryAccess.setLongAtOffset(sstable, offset, restarts.get(i));
+                MemoryAccess.setLongAtOffset(sstable, offset + Long.BYTES,
+                        keyPrefix(restartKeys.get(i).asSlice(sharedSize)));
+                offset += RESTART_RECORD_SIZE;
+            }
+            MemoryAccess.setLongAtOffset(sstable, offset, sharedSize);
+            MemoryAccess.setLongAtOffset(sstable, offset + Long.BYTES, restarts.size());
+            offset += 2 * Long.BYTES;
+            restarts.clear();
+            restartKeys.clear();
+
+            if (deflater != null) {
+                MemorySegment raw = sstable.asSlice(dataStart, offset - dataStart);
+                MemoryAccess.setLongAtOffset(sstable, blockStart + Long.BYTES, raw.byteSize());
+                offset = dataStart + compress(raw);
+            }
+            MemorySegment stored = sstable.asSlice(blockStart + Long.BYTES, offset - blockStart - Long.BYTES);
+            MemoryAccess.setLongAtOffset(sstable, blockStart, checksum(stored));
+        }
+
+        // the block is left as is if it does not get smaller
+        private long compress(MemorySegment raw) {
+            byte[] input = raw.toByteArray();
+            if (compressed.length < input.length) {
+                compressed = new byte[input.length];
+            }
+            deflater.reset();
+            deflater.setInput(input);
+            deflater.finish();
+            int size = deflater.deflate(compressed, 0, input.length);
+            if (!deflater.finished() || size >= input.length) {
+                return input.length;
+            }
+            raw.copyFrom(MemorySegment.ofArray(compressed).asSlice(0, size));
+            return size;
+        }
+    }
+}
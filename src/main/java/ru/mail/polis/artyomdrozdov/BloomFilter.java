@@ -0,0 +1,101 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.ByteOrder;
+
+// filter structure:
+// (bitCount)((bits)...)
+final class BloomFilter {
+
+    private static final int BITS_PER_ITEM = 10;
+    private static final int HASH_COUNT = 6;
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    private BloomFilter() {
+    }
+
+    private static long bitCount(long itemsCount) {
+        long bits = Math.max(Long.SIZE, itemsCount * BITS_PER_ITEM);
+        return (bits + Long.SIZE - 1) / Long.SIZE * Long.SIZE;
+    }
+
+    // the filter written at the offset, it knows its size
+    static MemorySegment at(MemorySegment segment, long offset) {
+        long bitCount = MemoryAccess.getLongAtOffset(segment, offset);
+        return segment.asSlice(offset, Long.BYTES + bitCount / Byte.SIZE);
+    }
+
+    // false means first length bytes of data were never added
+    static boolean mightContain(MemorySegment filter, MemorySegment data, long length) {
+        long bitCount = MemoryAccess.getLongAtOffset(filter, 0);
+        long hash = hash(data, length);
+        long step = Long.rotateLeft(hash, 32) | 1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = Long.remainderUnsigned(hash + i * step, bitCount);
+            long word = MemoryAccess.getLongAtOffset(filter, Long.BYTES + (bit >>> 6) * Long.BYTES);
+            if ((word & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(MemorySegment data, long length) {
+        long hash = SEED ^ length;
+        long offset = 0;
+        for (; offset + Long.BYTES <= length; offset += Long.BYTES) {
+            hash = mix(hash ^ MemoryAccess.getLongAtOffset(data, offset));
+        }
+        if (offset < length && length >= Long.BYTES) {
+            // the rest bytes are taken from the last long at once, byte by byte as well
+            long tail = MemoryAccess.getLongAtOffset(data, length - Long.BYTES, ByteOrder.LITTLE_ENDIAN);
+            for (long shift = (offset - length + Long.BYTES) * Byte.SIZE; shift < Long.SIZE; shift += Byte.SIZE) {
+                hash = mix(hash ^ ((tail >>> shift) & 0xFF));
+            }
+            return mix(hash);
+        }
+        for (; offset < length; offset++) {
+            hash = mix(hash ^ (MemoryAccess.getByteAtOffset(data, offset) & 0xFF));
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long value) {
+        long result = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        result = (result ^ (result >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return result ^ (result >>> 33);
+    }
+
+    // bits are set in a heap array, plain array access is much cheaper than segment access
+    // while a flush runs in a cold JVM, the filter is written to the file at once
+    static final class Builder {
+        private final long[] words;
+
+        Builder(long itemsCount) {
+            this.words = new long[Math.toIntExact(bitCount(itemsCount) / Long.SIZE)];
+        }
+
+        // adds first length bytes of data
+        void add(MemorySegment data, long length) {
+            long bitCount = words.length * (long) Long.SIZE;
+            long hash = hash(data, length);
+            long step = Long.rotateLeft(hash, 32) | 1;
+            for (int i = 0; i < HASH_COUNT; i++) {
+                long bit = Long.remainderUnsigned(hash + i * step, bitCount);
+                words[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        long byteSize() {
+            return Long.BYTES + words.length * (long) Long.BYTES;
+        }
+
+        // words are copied in the native order, the same as the one they are read in
+        void writeTo(MemorySegment segment, long offset) {
+            MemoryAccess.setLongAtOffset(segment, offset, words.length * (long) Long.SIZE);
+            segment.asSlice(offset + Long.BYTES, byteSize() - Long.BYTES).copyFrom(MemorySegment.ofArray(words));
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package ru.mail.polis.artyomdrozdov;
+
+import java.io.IOException;
+
+public class CorruptedSSTableException extends IOException {
+
+    public CorruptedSSTableException(String message) {
+        super(message);
+    }
+
+}
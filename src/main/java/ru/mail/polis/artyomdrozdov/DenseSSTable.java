@@ -0,0 +1,132 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Entry;
+
+import java.util.function.Predicate;
+
+// the first file format, the index keeps an offset of every entry, files are not written in it anymore
+// file structure:
+// (fileVersion)(entryCount)(flags)((entryPosition)...)|((keySize/key/valueSize/value)...)
+// |(prefixFilter)[(keyFilter)][(lastKey)][(rangeTombstones)(rangeTombstonesStart)](footerStart)
+// filters know their size, so the footer is read forward from footerStart
+final class DenseSSTable {
+
+    private static final int INDEX_HEADER_SIZE = Long.BYTES * 3;
+    private static final int INDEX_RECORD_SIZE = Long.BYTES;
+
+    static final SSTableFormat FORMAT = new SSTableFormat() {
+        @Override
+        public MemorySegment firstKey(MemorySegment sstable) {
+            return Storage.keyAt(sstable, entryPosition(sstable, 0));
+        }
+
+        @Override
+        public long entryIndex(MemorySegment sstable, MemorySegment key) {
+            return DenseSSTable.entryIndex(sstable, key, 0, entryCount(sstable) - 1);
+        }
+
+        @Override
+        public Entry<MemorySegment> entryAt(MemorySegment sstable, long index, ValueLogs valueLogs) {
+            long position = entryPosition(sstable, index);
+            MemorySegment key = Storage.keyAt(sstable, position);
+            return Storage.readEntry(key, sstable, position + Long.BYTES + key.byteSize());
+        }
+
+        @Override
+        public long byteSize(MemorySegment sstable, long fromIndex, long toIndex) {
+            return entryOffset(sstable, toIndex) - entryOffset(sstable, fromIndex)
+                    + (toIndex - fromIndex) * INDEX_RECORD_SIZE;
+        }
+
+        // the dense index is cheap to search from the position of the previous key
+        @Override
+        public void getAll(
+                MemorySegment sstable,
+                MemorySegment[] keys,
+                Entry<MemorySegment>[] results,
+                ValueLogs valueLogs,
+                Predicate<MemorySegment> mightContain) {
+            long entryCount = entryCount(sstable);
+            long pos = 0;
+            for (int k = 0; k < keys.length && pos < entryCount; k++) {
+                if (results[k] != null) {
+                    continue;
+                }
+                long keyPos = entryIndexFrom(sstable, keys[k], pos, entryCount);
+                if (keyPos >= 0) {
+                    results[k] = entryAt(sstable, keyPos, valueLogs);
+                    pos = keyPos;
+                } else {
+                    pos = ~keyPos;
+                }
+            }
+        }
+    };
+
+    private DenseSSTable() {
+    }
+
+    private static long entryCount(MemorySegment sstable) {
+        return MemoryAccess.getLongAtOffset(sstable, 8);
+    }
+
+    private static long entryPosition(MemorySegment sstable, long index) {
+        return MemoryAccess.getLongAtOffset(sstable, INDEX_HEADER_SIZE + index * INDEX_RECORD_SIZE);
+    }
+
+    // index == entryCount points to the end of entries
+    private static long entryOffset(MemorySegment sstable, long index) {
+        if (index < entryCount(sstable)) {
+            return entryPosition(sstable, index);
+        }
+        if ((MemoryAccess.getLongAtOffset(sstable, 16) & Storage.FLAG_PREFIX_FILTER) == 0) {
+            return sstable.byteSize();
+        }
+        return MemoryAccess.getLongAtOffset(sstable, sstable.byteSize() - Long.BYTES);
+    }
+
+    // binary search in [left; right]
+    private static long entryIndex(MemorySegment sstable, MemorySegment key, long left, long right) {
+        while (left <= right) {
+            long mid = (left + right) >>> 1;
+
+            int comparedResult = compareKeyAt(sstable, mid, key);
+            if (comparedResult > 0) {
+                left = mid + 1;
+            } else if (comparedResult < 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return ~left;
+    }
+
+    // galloping search from the position of the previous (smaller) key
+    private static long entryIndexFrom(MemorySegment sstable, MemorySegment key, long from, long entryCount) {
+        long left = from;
+        long right = from;
+        long step = 1;
+        while (right < entryCount) {
+            int comparedResult = compareKeyAt(sstable, right, key);
+            if (comparedResult == 0) {
+                return right;
+            }
+            if (comparedResult < 0) {
+                break;
+            }
+            left = right + 1;
+            right = from + step;
+            step <<= 1;
+        }
+
+        return entryIndex(sstable, key, left, Math.min(right, entryCount) - 1);
+    }
+
+    private static int compareKeyAt(MemorySegment sstable, long index, MemorySegment key) {
+        return MemorySegmentComparator.INSTANCE.compare(key, Storage.keyAt(sstable, entryPosition(sstable, index)));
+    }
+}
@@ -8,6 +8,7 @@ import java.util.Comparator;
 public class EntryKeyComparator implements Comparator<Entry<MemorySegment>> {
 
     public static final Comparator<Entry<MemorySegment>> INSTANCE = new EntryKeyComparator();
+    public static final Comparator<Entry<MemorySegment>> REVERSED = INSTANCE.reversed();
 
     private EntryKeyComparator() {
     }
@@ -0,0 +1,38 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Entry;
+import ru.mail.polis.MergeOperator;
+
+import java.util.Objects;
+import java.util.function.BinaryOperator;
+
+// folds operands on top of older entries of the same key
+final class EntryMerger implements BinaryOperator<Entry<MemorySegment>> {
+
+    private final MergeOperator<MemorySegment> operator;
+
+    EntryMerger(MergeOperator<MemorySegment> operator) {
+        this.operator = operator;
+    }
+
+    // older is null when there are no older entries of the key at all
+    @Override
+    public Entry<MemorySegment> apply(Entry<MemorySegment> older, Entry<MemorySegment> newer) {
+        if (!(newer instanceof OperandEntry)) {
+            return newer;
+        }
+        if (older instanceof OperandEntry) {
+            // a null operand would be read as a tombstone
+            MemorySegment combined = Objects.requireNonNull(
+                    operator.combine(older.value(), newer.value()),
+                    "MergeOperator.combine returned null"
+            );
+            return new OperandEntry(newer.key(), combined);
+        }
+        MemorySegment value = older == null || older.isTombstone() ? null : older.value();
+        return new BaseEntry<>(newer.key(), operator.merge(value, newer.value()));
+    }
+
+}
@@ -0,0 +1,208 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+// the live set of sstables as a log of version edits, an edit is applied by appending its record,
+// so a crash leaves either the whole edit or a torn record at the end, which is ignored and cut off on load
+// file structure: ((recordSize)(checksum)(record)...)
+// record: (nextId)(addedCount)((id)(level)(firstKeySize/firstKey)(lastKeySize/lastKey)...)(removedCount)((id)...)
+// key sizes are -1 for sstables without entries, checksum is CRC32C of the record
+final class Manifest {
+
+    static final String FILE_NAME = "MANIFEST";
+    private static final String FILE_EXT_TMP = ".tmp";
+    // the log is rewritten as a single record on load when it has more ones
+    private static final int MAX_RECORDS = 64;
+    private static final long RECORD_HEADER_SIZE = 2 * Long.BYTES;
+
+    static final long FLUSHED_LEVEL = 0;
+    static final long COMPACTED_LEVEL = 1;
+
+    // keys are null for sstables without entries
+    record SSTable(long id, long level, MemorySegment firstKey, MemorySegment lastKey) {
+    }
+
+    private final Path file;
+    // sorted by id, so fresh files are the last ones
+    private final List<SSTable> sstables;
+    private final long nextId;
+
+    private Manifest(Path file, List<SSTable> sstables, long nextId) {
+        this.file = file;
+        this.sstables = sstables;
+        this.nextId = nextId;
+    }
+
+    // null if there is no manifest yet
+    static Manifest load(Path basePath) throws IOException {
+        Path file = basePath.resolve(FILE_NAME);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        MemorySegment log = MemorySegment.ofArray(data);
+        TreeMap<Long, SSTable> live = new TreeMap<>();
+        long nextId = 0;
+        int records = 0;
+        long offset = 0;
+        while (offset + RECORD_HEADER_SIZE <= log.byteSize()) {
+            long recordSize = MemoryAccess.getLongAtOffset(log, offset);
+            if (recordSize < 0 || recordSize > log.byteSize() - offset - RECORD_HEADER_SIZE) {
+                break;
+            }
+            long recordEnd = offset + RECORD_HEADER_SIZE + recordSize;
+            if (checksum(data, offset + RECORD_HEADER_SIZE, recordSize)
+                    != MemoryAccess.getLongAtOffset(log, offset + Long.BYTES)) {
+                // only the last record can be torn
+                if (recordEnd < log.byteSize()) {
+                    throw new CorruptedSSTableException(file + ": record at " + offset + " checksum mismatch");
+                }
+                break;
+            }
+            nextId = replay(log.asSlice(offset + RECORD_HEADER_SIZE, recordSize), live);
+            records++;
+            offset = recordEnd;
+        }
+
+        if (offset < log.byteSize()) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+                channel.force(false);
+            }
+        }
+        List<SSTable> sstables = new ArrayList<>(live.values());
+        if (records > MAX_RECORDS) {
+            return create(basePath, sstables, nextId);
+        }
+        return new Manifest(file, sstables, nextId);
+    }
+
+    // returns nextId of the record
+    private static long replay(MemorySegment record, TreeMap<Long, SSTable> live) {
+        long addedCount = MemoryAccess.getLongAtOffset(record, Long.BYTES);
+        long offset = 2 * Long.BYTES;
+        for (long i = 0; i < addedCount; i++) {
+            long keysOffset = offset + 2 * Long.BYTES;
+            MemorySegment firstKey = readKey(record, keysOffset);
+            MemorySegment lastKey = readKey(record, keysOffset + keyRecordSize(firstKey));
+            long id = MemoryAccess.getLongAtOffset(record, offset);
+            long level = MemoryAccess.getLongAtOffset(record, offset + Long.BYTES);
+            live.put(id, new SSTable(id, level, firstKey, lastKey));
+            offset = keysOffset + keyRecordSize(firstKey) + keyRecordSize(lastKey);
+        }
+        long removedCount = MemoryAccess.getLongAtOffset(record, offset);
+        offset += Long.BYTES;
+        for (long i = 0; i < removedCount; i++) {
+            live.remove(MemoryAccess.getLongAtOffset(record, offset + i * Long.BYTES));
+        }
+        return MemoryAccess.getLongAtOffset(record, 0);
+    }
+
+    // the manifest of the sstables is written aside and replaces the existing one atomically
+    static Manifest create(Path basePath, List<SSTable> sstables, long nextId) throws IOException {
+        Path file = basePath.resolve(FILE_NAME);
+        Path tmpFile = basePath.resolve(FILE_NAME + FILE_EXT_TMP);
+        try (FileChannel channel = FileChannel.open(
+                tmpFile,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            write(channel, record(nextId, sstables, List.of()));
+        }
+        Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+        return new Manifest(file, sstables, nextId);
+    }
+
+    List<SSTable> sstables() {
+        return sstables;
+    }
+
+    // id of the next sstable to write, ids are never reused
+    long nextId() {
+        return nextId;
+    }
+
+    // the edit is durable when the method returns, the storage loads the new version of the manifest then
+    void apply(List<SSTable> added, Collection<Long> removedIds) throws IOException {
+        long editNextId = nextId;
+        for (SSTable sstable : added) {
+            editNextId = Math.max(editNextId, sstable.id() + 1);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            write(channel, record(editNextId, added, removedIds));
+        }
+    }
+
+    private static void write(FileChannel channel, byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    // the record with its header
+    private static byte[] record(long nextId, List<SSTable> added, Collection<Long> removedIds) {
+        long recordSize = 3L * Long.BYTES + (long) removedIds.size() * Long.BYTES;
+        for (SSTable sstable : added) {
+            recordSize += 2L * Long.BYTES + keyRecordSize(sstable.firstKey()) + keyRecordSize(sstable.lastKey());
+        }
+        byte[] data = new byte[Math.toIntExact(RECORD_HEADER_SIZE + recordSize)];
+        MemorySegment record = MemorySegment.ofArray(data);
+
+        long offset = RECORD_HEADER_SIZE;
+        MemoryAccess.setLongAtOffset(record, offset, nextId);
+        MemoryAccess.setLongAtOffset(record, offset + Long.BYTES, added.size());
+        offset += 2 * Long.BYTES;
+        for (SSTable sstable : added) {
+            MemoryAccess.setLongAtOffset(record, offset, sstable.id());
+            MemoryAccess.setLongAtOffset(record, offset + Long.BYTES, sstable.level());
+            offset += 2 * Long.BYTES;
+            offset += Storage.writeRecord(record, offset, sstable.firstKey());
+            offset += Storage.writeRecord(record, offset, sstable.lastKey());
+        }
+        MemoryAccess.setLongAtOffset(record, offset, removedIds.size());
+        offset += Long.BYTES;
+        for (long id : removedIds) {
+            MemoryAccess.setLongAtOffset(record, offset, id);
+            offset += Long.BYTES;
+        }
+
+        MemoryAccess.setLongAtOffset(record, 0, recordSize);
+        MemoryAccess.setLongAtOffset(record, Long.BYTES, checksum(data, RECORD_HEADER_SIZE, recordSize));
+        return data;
+    }
+
+    private static MemorySegment readKey(MemorySegment record, long offset) {
+        long size = MemoryAccess.getLongAtOffset(record, offset);
+        return size == -1 ? null : record.asSlice(offset + Long.BYTES, size);
+    }
+
+    private static long keyRecordSize(MemorySegment key) {
+        return Long.BYTES + (key == null ? 0 : key.byteSize());
+    }
+
+    private static long checksum(byte[] data, long offset, long size) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, (int) offset, (int) size);
+        return crc.getValue();
+    }
+}
@@ -3,16 +3,28 @@ package ru.mail.polis.artyomdrozdov;
 import jdk.incubator.foreign.MemorySegment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.mail.polis.BaseEntry;
 import ru.mail.polis.Config;
+import ru.mail.polis.Cursor;
 import ru.mail.polis.Dao;
 import ru.mail.polis.Entry;
+import ru.mail.polis.Estimate;
+import ru.mail.polis.MergeOperator;
 
 import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
@@ -21,9 +33,14 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>> {
 
@@ -36,58 +53,134 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
     private final ExecutorService executor = Executors.newSingleThreadExecutor(
             r -> new Thread(r, "MemorySegmentDaoBG"));
 
+    // throttled scrubs would hold flushes back in the executor above
+    private final ExecutorService scrubExecutor = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, "MemorySegmentDaoScrub"));
+
     private volatile State state;
 
+    // guarded by upsertLock, completed when the last started flush is finished
+    private CompletableFuture<Void> flushing = CompletableFuture.completedFuture(null);
+
     private final Config config;
 
+    // null if merge operands are not supported
+    private final EntryMerger merger;
+
     public MemorySegmentDao(Config config) throws IOException {
+        this(config, null);
+    }
+
+    public MemorySegmentDao(Config config, MergeOperator<MemorySegment> mergeOperator) throws IOException {
         this.config = config;
-        this.state = State.newState(config, Storage.load(config));
+        this.merger = mergeOperator == null ? null : new EntryMerger(mergeOperator);
+        Storage storage = Storage.load(config);
+        if (merger == null && storage.hasOperands()) {
+            storage.close();
+            throw new IllegalArgumentException("Merge operands are stored, the merge operator is required");
+        }
+        this.state = State.newState(config, merger, storage);
     }
 
+    // iterators are not closed, so they pin the storage until they are read to the end or lost,
+    // cursors pin it until they are closed
     @Override
     public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
-        if (from == null) {
-            from = VERY_FIRST_KEY;
-        }
+        MemorySegment keyFrom = from == null ? VERY_FIRST_KEY : from;
+        return openIterator(state -> state.get(keyFrom, to));
+    }
 
-        return getTombstoneFilteringIterator(from, to);
+    @Override
+    public Cursor<Entry<MemorySegment>> cursor(MemorySegment from, MemorySegment to) {
+        MemorySegment keyFrom = from == null ? VERY_FIRST_KEY : from;
+        return openCursor(state -> state.get(keyFrom, to));
     }
 
-    private TombstoneFilteringIterator getTombstoneFilteringIterator(MemorySegment from, MemorySegment to) {
-        State state = accessState();
+    @Override
+    public Iterator<Entry<MemorySegment>> getDescending(MemorySegment from, MemorySegment to) {
+        MemorySegment keyFrom = from == null ? VERY_FIRST_KEY : from;
+        return openIterator(state -> state.getDescending(keyFrom, to));
+    }
 
-        ArrayList<Iterator<Entry<MemorySegment>>> iterators = state.storage.iterate(from, to);
+    @Override
+    public Iterator<Entry<MemorySegment>> prefix(MemorySegment prefix) {
+        return openIterator(state -> state.prefix(prefix));
+    }
 
-        iterators.add(state.flushing.get(from, to));
-        iterators.add(state.memory.get(from, to));
+    @Override
+    public Stream<Entry<MemorySegment>> stream(MemorySegment from, MemorySegment to) {
+        MemorySegment keyFrom = from == null ? VERY_FIRST_KEY : from;
+        // parts of the range are read at different times, so they share a point-in-time state
+        StreamState state = new StreamState(acquireVersion());
+        return StreamSupport.stream(new RangeSpliterator(state, keyFrom, to), false)
+                .onClose(state::release);
+    }
 
-        Iterator<Entry<MemorySegment>> mergeIterator = MergeIterator.of(iterators, EntryKeyComparator.INSTANCE);
+    private TombstoneFilteringIterator openCursor(Function<State, Iterator<Entry<MemorySegment>>> open) {
+        State state = acquireVersion();
+        try {
+            return new TombstoneFilteringIterator(open.apply(state), state, false);
+        } catch (RuntimeException e) {
+            state.release();
+            throw e;
+        }
+    }
 
-        return new TombstoneFilteringIterator(mergeIterator);
+    // the latest memory, no reader is registered, so only the storage is pinned
+    private TombstoneFilteringIterator openIterator(Function<State, Iterator<Entry<MemorySegment>>> open) {
+        State state = acquireState();
+        try {
+            return new TombstoneFilteringIterator(open.apply(state), state, true);
+        } catch (RuntimeException e) {
+            state.release();
+            throw e;
+        }
     }
 
     @Override
     public Entry<MemorySegment> get(MemorySegment key) {
-        State state = accessState();
+        State state = acquireState();
+        try {
+            return state.get(key);
+        } finally {
+            state.storage.release();
+        }
+    }
 
-        Entry<MemorySegment> result = state.memory.get(key);
-        if (result == null) {
-            result = state.storage.get(key);
+    @Override
+    public Estimate estimate(MemorySegment from, MemorySegment to) {
+        MemorySegment keyFrom = from == null ? VERY_FIRST_KEY : from;
+        State state = acquireState();
+        try {
+            return state.estimate(keyFrom, to);
+        } finally {
+            state.storage.release();
         }
+    }
 
-        return (result == null || result.isTombstone()) ? null : result;
+    @Override
+    public List<Entry<MemorySegment>> getAll(Collection<MemorySegment> keys) {
+        State state = acquireState();
+        try {
+            return state.getAll(keys);
+        } finally {
+            state.storage.release();
+        }
     }
 
     @Override
-    public void upsert(Entry<MemorySegment> entry) {
-        State state = accessState();
+    public Dao<MemorySegment, Entry<MemorySegment>> snapshot() {
+        return new Snapshot(acquireVersion());
+    }
 
+    @Override
+    public void upsert(Entry<MemorySegment> entry) {
         boolean runFlush;
         // it is intentionally the read lock!!!
         upsertLock.readLock().lock();
         try {
-            runFlush = state.memory.put(entry.key(), entry);
+            // state is read under the lock, otherwise entry may get to the memory being flushed
+            runFlush = accessState().memory.put(entry.key(), entry);
         } finally {
             upsertLock.readLock().unlock();
         }
@@ -97,56 +190,155 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         }
     }
 
-    private Future<?> flushInBg(boolean tolerateFlushInProgress) {
-        upsertLock.writeLock().lock();
+    @Override
+    public boolean compareAndSet(MemorySegment key, MemorySegment expectedValue, Entry<MemorySegment> newEntry) {
+        if (key.mismatch(newEntry.key()) != -1) {
+            throw new IllegalArgumentException("Entry has another key");
+        }
+        boolean runFlush;
+        // the read lock keeps the state, so only concurrent upserts to the memory are possible
+        upsertLock.readLock().lock();
         try {
             State state = accessState();
-            if (state.isFlushing()) {
-                if (tolerateFlushInProgress) {
-                    // or any other completed future
-                    return CompletableFuture.completedFuture(null);
+            while (true) {
+                Entry<MemorySegment> inMemory = state.memory.get(key);
+                Entry<MemorySegment> current = inMemory == null ? state.getPersisted(key) : inMemory;
+                if (current instanceof OperandEntry) {
+                    current = state.resolve(key);
                 }
-                throw new TooManyFlushesInBgException();
+                if (!hasValue(current, expectedValue)) {
+                    return false;
+                }
+                long sizeDelta = state.memory.replace(key, inMemory, newEntry);
+                if (sizeDelta != Memory.NOT_REPLACED) {
+                    runFlush = state.memory.grow(sizeDelta);
+                    break;
+                }
+                // lost the race to another upsert, check its value
             }
+        } finally {
+            upsertLock.readLock().unlock();
+        }
 
-            state = state.prepareForFlush();
-            this.state = state;
+        if (runFlush) {
+            flushInBg(false);
+        }
+        return true;
+    }
+
+    private static boolean hasValue(Entry<MemorySegment> entry, MemorySegment value) {
+        if (entry == null || entry.isTombstone()) {
+            return value == null;
+        }
+        return value != null && entry.value().mismatch(value) == -1;
+    }
+
+    @Override
+    public void deleteRange(MemorySegment from, MemorySegment to) {
+        MemorySegment keyFrom = from == null ? VERY_FIRST_KEY : from;
+        if (to != null && MemorySegmentComparator.INSTANCE.compare(keyFrom, to) >= 0) {
+            return;
+        }
+        boolean runFlush;
+        // exclusive: upserts to the range are either before (removed) or after (kept) it
+        upsertLock.writeLock().lock();
+        try {
+            runFlush = accessState().memory.deleteRange(keyFrom, to);
         } finally {
             upsertLock.writeLock().unlock();
         }
 
-        return executor.submit(() -> {
-            try {
-                State state = accessState();
+        if (runFlush) {
+            flushInBg(false);
+        }
+    }
+
+    @Override
+    public void merge(Entry<MemorySegment> operand) {
+        if (merger == null) {
+            throw new UnsupportedOperationException("Merge operator is not configured");
+        }
+        if (operand.isTombstone()) {
+            throw new IllegalArgumentException("Operand is null");
+        }
+        boolean runFlush;
+        // it is intentionally the read lock!!!
+        upsertLock.readLock().lock();
+        try {
+            runFlush = accessState().memory.merge(new OperandEntry(operand.key(), operand.value()), merger);
+        } finally {
+            upsertLock.readLock().unlock();
+        }
 
-                Storage storage = state.storage;
-                Storage.save(config, storage, state.flushing.values());
-                Storage load = Storage.load(config);
+        if (runFlush) {
+            flushInBg(false);
+        }
+    }
 
-                upsertLock.writeLock().lock();
-                try {
-                    this.state = state.afterFlush(load);
-                } finally {
-                    upsertLock.writeLock().unlock();
+    @Override
+    public void upsertAll(Iterable<Entry<MemorySegment>> entries) {
+        boolean runFlush;
+        // exclusive: concurrent batches would interleave their entries, readers see the batch by its number
+        upsertLock.writeLock().lock();
+        try {
+            runFlush = accessState().memory.putAll(entries);
+        } finally {
+            upsertLock.writeLock().unlock();
+        }
+
+        if (runFlush) {
+            flushInBg(false);
+        }
+    }
+
+    private CompletableFuture<Void> flushInBg(boolean tolerateFlushInProgress) {
+        upsertLock.writeLock().lock();
+        try {
+            State state = accessState();
+            if (state.isFlushing()) {
+                if (tolerateFlushInProgress) {
+                    // current memory goes to disk right after the flush in progress
+                    return flushing.thenCompose(ignored -> flushInBg(true));
                 }
-                storage.maybeClose();
-                return null;
-            } catch (Exception e) {
-                LOG.error("Can't flush", e);
+                throw new TooManyFlushesInBgException();
+            }
+
+            state = state.prepareForFlush();
+            this.state = state;
+            flushing = runInBg(() -> {
                 try {
+                    State current = accessState();
+
+                    Storage storage = current.storage;
+                    Storage.save(config, storage, current.flushing.values(), current.flushing.removed());
+                    Storage load = Storage.load(config, storage);
+
+                    upsertLock.writeLock().lock();
+                    try {
+                        this.state = current.afterFlush(load);
+                    } finally {
+                        upsertLock.writeLock().unlock();
+                    }
+                    storage.close();
+                } catch (Exception e) {
+                    LOG.error("Can't flush", e);
                     this.state.storage.close();
-                } catch (IOException ex) {
-                    LOG.error("Can't stop storage", ex);
-                    ex.addSuppressed(e);
-                    throw ex;
+                    throw e;
                 }
-                throw e;
-            }
-        });
+            });
+            return flushing;
+        } finally {
+            upsertLock.writeLock().unlock();
+        }
     }
 
     @Override
     public void flush() throws IOException {
+        awaitAndUnwrap(flushAsync());
+    }
+
+    @Override
+    public CompletableFuture<Void> flushAsync() {
         boolean runFlush;
         // it is intentionally the read lock!!!
         upsertLock.writeLock().lock();
@@ -157,37 +349,45 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         }
 
         if (runFlush) {
-            Future<?> future = flushInBg(true);
-            awaitAndUnwrap(future);
+            return flushInBg(true);
         }
+        return CompletableFuture.completedFuture(null);
     }
 
     @Override
     public void compact() throws IOException {
+        awaitAndUnwrap(compactAsync());
+    }
+
+    @Override
+    public CompletableFuture<Void> compactAsync() {
         State preCompactState = accessState();
 
         if (preCompactState.memory.isEmpty() && preCompactState.storage.isCompacted()) {
-            return;
+            return CompletableFuture.completedFuture(null);
         }
 
-        Future<Object> future = executor.submit(() -> {
+        return runInBg(() -> {
             State state = accessState();
 
             if (state.memory.isEmpty() && state.storage.isCompacted()) {
-                return null;
+                return;
             }
 
             Storage.compact(
                     config,
+                    state.storage,
                     () -> MergeIterator.of(
                             state.storage.iterate(VERY_FIRST_KEY,
-                                    null
+                                    null,
+                                    RangeTombstones.EMPTY
                             ),
-                            EntryKeyComparator.INSTANCE
+                            EntryKeyComparator.INSTANCE,
+                            merger
                     )
             );
 
-            Storage storage = Storage.load(config);
+            Storage storage = Storage.load(config, state.storage);
 
             upsertLock.writeLock().lock();
             try {
@@ -196,11 +396,31 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
                 upsertLock.writeLock().unlock();
             }
 
-            state.storage.maybeClose();
-            return null;
+            state.storage.close();
         });
+    }
+
+    // verifies files of the current storage, the storage is pinned until it is done
+    @Override
+    public CompletableFuture<Void> scrubAsync(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond has to be positive: " + bytesPerSecond);
+        }
+        State state = acquireState();
+        // a scrub dropped from the queue by close() is cancelled without running, it is released either way
+        return runInBg(scrubExecutor, () -> state.storage.scrub(bytesPerSecond))
+                .whenComplete((ignored, e) -> state.storage.release());
+    }
+
+    private CompletableFuture<Void> runInBg(BgTask task) {
+        return runInBg(executor, task);
+    }
 
-        awaitAndUnwrap(future);
+    // the future is completed by the background thread itself, nobody is parked while the task runs
+    private static CompletableFuture<Void> runInBg(ExecutorService executor, BgTask task) {
+        BgRun run = new BgRun(task);
+        executor.execute(run);
+        return run.future;
     }
 
     private void awaitAndUnwrap(Future<?> future) throws IOException {
@@ -227,6 +447,34 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         return state;
     }
 
+    // pins storage of the state, caller has to release it
+    private State acquireState() {
+        while (true) {
+            State state = accessState();
+            if (state.storage.acquire()) {
+                return state;
+            }
+            // storage is retired right after the state is replaced, so retry unless it failed in place
+            if (this.state == state) {
+                throw new StorageClosedException(new IllegalStateException("Storage is closed"));
+            }
+        }
+    }
+
+    // the state at the latest version of memory, caller has to release it
+    private State acquireVersion() {
+        while (true) {
+            State state = acquireState();
+            long version = state.versions.open();
+            // writes up to the version are in the state, unless a flush has moved memory in between
+            if (this.state == state) {
+                return state.at(version);
+            }
+            state.versions.release(version);
+            state.storage.release();
+        }
+    }
+
     @Override
     public synchronized void close() throws IOException {
         State state = this.state;
@@ -234,27 +482,46 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             return;
         }
         executor.shutdown();
+        // a scrub in progress is interrupted, queued ones never start
+        for (Runnable dropped : scrubExecutor.shutdownNow()) {
+            ((BgRun) dropped).future.cancel(false);
+        }
         try {
             //noinspection StatementWithEmptyBody
             while (!executor.awaitTermination(10, TimeUnit.DAYS)) ;
+            //noinspection StatementWithEmptyBody
+            while (!scrubExecutor.awaitTermination(10, TimeUnit.DAYS)) ;
         } catch (InterruptedException e) {
             throw new IllegalStateException(e);
         }
         state = this.state;
-        state.storage.close();
-        this.state = state.afterClosed();
-        if (state.memory.isEmpty()) {
-            return;
+        // the storage is still mapped while memory is saved, value logs and sstable ids are read from it
+        try {
+            if (!state.memory.isEmpty()) {
+                Storage.save(config, state.storage, state.memory.values(), state.memory.removed());
+            }
+        } finally {
+            state.storage.close();
+            this.state = state.afterClosed();
         }
-        Storage.save(config, state.storage, state.memory.values());
     }
 
-    private static class TombstoneFilteringIterator implements Iterator<Entry<MemorySegment>> {
+    // releases the state pinned by the reader on close, or once the reader is lost
+    private static class TombstoneFilteringIterator implements Cursor<Entry<MemorySegment>> {
         private final Iterator<Entry<MemorySegment>> iterator;
+        // releases the state at most once, null if the pin belongs to the caller
+        private final Cleaner.Cleanable pin;
+        private final boolean releaseAtEnd;
         private Entry<MemorySegment> current;
 
-        public TombstoneFilteringIterator(Iterator<Entry<MemorySegment>> iterator) {
+        public TombstoneFilteringIterator(Iterator<Entry<MemorySegment>> iterator, State state) {
+            this(iterator, state, false);
+        }
+
+        public TombstoneFilteringIterator(Iterator<Entry<MemorySegment>> iterator, State state, boolean releaseAtEnd) {
             this.iterator = iterator;
+            this.pin = state == null ? null : Storage.CLEANER.register(this, state::release);
+            this.releaseAtEnd = releaseAtEnd;
         }
 
         public Entry<MemorySegment> peek() {
@@ -275,6 +542,9 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
                 }
             }
 
+            if (releaseAtEnd) {
+                close();
+            }
             return false;
         }
 
@@ -287,35 +557,195 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             current = null;
             return next;
         }
+
+        @Override
+        public void close() {
+            if (pin != null) {
+                pin.clean();
+            }
+        }
+    }
+
+    // the state of a stream is released by the last part to run out or by close(), whichever comes first
+    private static final class StreamState {
+        final State state;
+        private final AtomicInteger parts = new AtomicInteger(1);
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        StreamState(State state) {
+            this.state = state;
+        }
+
+        void split() {
+            parts.incrementAndGet();
+        }
+
+        void partDone() {
+            if (parts.decrementAndGet() == 0) {
+                release();
+            }
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                state.release();
+            }
+        }
+    }
+
+    // [from; to) is split by keys of the largest sstable, every part is merged on its own
+    private static class RangeSpliterator implements Spliterator<Entry<MemorySegment>> {
+        private final StreamState stream;
+        private final MemorySegment to;
+        private MemorySegment from;
+        private Iterator<Entry<MemorySegment>> iterator;
+        private boolean done;
+
+        RangeSpliterator(StreamState stream, MemorySegment from, MemorySegment to) {
+            this.stream = stream;
+            this.from = from;
+            this.to = to;
+        }
+
+        // parts are not pinned on their own, the state is pinned by the stream until it is read or closed
+        private Iterator<Entry<MemorySegment>> iterator() {
+            if (iterator == null) {
+                iterator = new TombstoneFilteringIterator(stream.state.get(from, to), null);
+            }
+            return iterator;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<MemorySegment>> action) {
+            if (done) {
+                return false;
+            }
+            Iterator<Entry<MemorySegment>> current = iterator();
+            if (!current.hasNext()) {
+                finish();
+                return false;
+            }
+            action.accept(current.next());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Entry<MemorySegment>> action) {
+            if (done) {
+                return;
+            }
+            iterator().forEachRemaining(action);
+            finish();
+        }
+
+        private void finish() {
+            done = true;
+            iterator = null;
+            stream.partDone();
+        }
+
+        @Override
+        public Spliterator<Entry<MemorySegment>> trySplit() {
+            if (iterator != null || done) {
+                return null;
+            }
+            MemorySegment middle = stream.state.storage.splitKey(from, to);
+            if (middle == null) {
+                return null;
+            }
+            stream.split();
+            RangeSpliterator prefix = new RangeSpliterator(stream, from, middle);
+            from = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return done ? 0 : stream.state.splitSize(from, to);
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+
+    @FunctionalInterface
+    private interface BgTask {
+        void run() throws Exception;
+    }
+
+    // the task with its future, so close() can cancel the ones its executor has dropped
+    private static final class BgRun implements Runnable {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final BgTask task;
+
+        BgRun(BgTask task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+                future.complete(null);
+            } catch (Exception | Error e) {
+                future.completeExceptionally(e);
+            }
+        }
     }
 
     private static class State {
         final Config config;
+        final EntryMerger merger;
+        final Versions versions;
         final Memory memory;
         final Memory flushing;
         final Storage storage;
         final boolean closed;
+        // memory entries written after the version are not seen, Versions.LATEST for the state of the dao
+        final long version;
 
-        State(Config config, Memory memory, Memory flushing, Storage storage) {
+        State(Config config, EntryMerger merger, Versions versions, Memory memory, Memory flushing, Storage storage) {
+            this(config, merger, versions, memory, flushing, storage, Versions.LATEST);
+        }
+
+        private State(
+                Config config,
+                EntryMerger merger,
+                Versions versions,
+                Memory memory,
+                Memory flushing,
+                Storage storage,
+                long version) {
             this.config = config;
+            this.merger = merger;
+            this.versions = versions;
             this.memory = memory;
             this.flushing = flushing;
             this.storage = storage;
             this.closed = false;
+            this.version = version;
         }
 
-        State(Config config, Storage storage, boolean closed) {
+        State(Config config, EntryMerger merger, Storage storage, boolean closed) {
             this.config = config;
+            this.merger = merger;
+            this.versions = null;
             this.memory = Memory.EMPTY;
             this.flushing = Memory.EMPTY;
             this.storage = storage;
             this.closed = closed;
+            this.version = Versions.LATEST;
         }
 
-        static State newState(Config config, Storage storage) {
+        static State newState(Config config, EntryMerger merger, Storage storage) {
+            Versions versions = new Versions();
             return new State(
                     config,
-                    new Memory(config.flushThresholdBytes()),
+                    merger,
+                    versions,
+                    new Memory(config.flushThresholdBytes(), versions),
                     Memory.EMPTY,
                     storage
             );
@@ -328,7 +758,9 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             }
             return new State(
                     config,
-                    new Memory(config.flushThresholdBytes()),
+                    merger,
+                    versions,
+                    new Memory(config.flushThresholdBytes(), versions),
                     memory,
                     storage
             );
@@ -341,6 +773,8 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             }
             return new State(
                     config,
+                    merger,
+                    versions,
                     memory,
                     Memory.EMPTY,
                     storage
@@ -351,6 +785,8 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             checkNotClosed();
             return new State(
                     config,
+                    merger,
+                    versions,
                     memory,
                     flushing,
                     storage
@@ -362,7 +798,7 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             if (!storage.isClosed()) {
                 throw new IllegalStateException("Storage should be closed early");
             }
-            return new State(config, storage, true);
+            return new State(config, merger, storage, true);
         }
 
         public void checkNotClosed() {
@@ -371,43 +807,452 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             }
         }
 
+        // the view of the state for a reader registered at the version of memory
+        public State at(long version) {
+            checkNotClosed();
+            return new State(config, merger, versions, memory, flushing, storage, version);
+        }
+
+        // pins the storage and memory versions the state sees, fails if the storage is already unmapped
+        public boolean acquire() {
+            if (!storage.acquire()) {
+                return false;
+            }
+            if (version != Versions.LATEST) {
+                versions.retain(version);
+            }
+            return true;
+        }
+
+        public void release() {
+            if (version != Versions.LATEST) {
+                versions.release(version);
+            }
+            storage.release();
+        }
+
+        private RangeTombstones memoryRemoved() {
+            return memory.removed(version);
+        }
+
         public boolean isFlushing() {
             return this.flushing != Memory.EMPTY;
         }
+
+        // merged entries with tombstones, valid while the storage is mapped
+        public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
+            return mergeIterator(storage.iterate(from, to, removedInMemory()), from, to);
+        }
+
+        public Iterator<Entry<MemorySegment>> prefix(MemorySegment prefix) {
+            MemorySegment to = upperBound(prefix);
+            return mergeIterator(storage.iteratePrefix(prefix, to, removedInMemory()), prefix, to);
+        }
+
+        private Iterator<Entry<MemorySegment>> mergeIterator(
+                ArrayList<Iterator<Entry<MemorySegment>>> iterators,
+                MemorySegment from,
+                MemorySegment to) {
+            iterators.add(memoryRemoved().filter(flushing.get(from, to, version)));
+            iterators.add(memory.get(from, to, version));
+
+            return MergeIterator.of(iterators, EntryKeyComparator.INSTANCE, merger);
+        }
+
+        // a range tombstone removes entries of older layers only, newer entries of its own layer are kept
+        private RangeTombstones removedInMemory() {
+            return memoryRemoved().union(flushing.removed(version));
+        }
+
+        // folds operands of the key with all older entries, the result may reference the storage
+        public Entry<MemorySegment> resolve(MemorySegment key) {
+            // the least key greater than the key
+            MemorySegment to = MemorySegment.ofArray(Arrays.copyOf(key.toByteArray(), (int) key.byteSize() + 1));
+            Iterator<Entry<MemorySegment>> iterator =
+                    mergeIterator(storage.iterate(key, to, removedInMemory()), key, to);
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        public Iterator<Entry<MemorySegment>> getDescending(MemorySegment from, MemorySegment to) {
+            ArrayList<Iterator<Entry<MemorySegment>>> iterators =
+                    storage.iterateDescending(from, to, removedInMemory());
+
+            iterators.add(memoryRemoved().filter(flushing.getDescending(from, to, version)));
+            iterators.add(memory.getDescending(from, to, version));
+
+            return MergeIterator.of(iterators, EntryKeyComparator.REVERSED, merger);
+        }
+
+        // the least key greater than all keys starting with prefix, null if there is no such key
+        private static MemorySegment upperBound(MemorySegment prefix) {
+            byte[] bound = prefix.toByteArray();
+            for (int i = bound.length - 1; i >= 0; i--) {
+                if (bound[i] != (byte) 0xFF) {
+                    bound[i]++;
+                    return MemorySegment.ofArray(Arrays.copyOf(bound, i + 1));
+                }
+            }
+            return null;
+        }
+
+        // entries from storage are slices of mapped files, valid while the storage is mapped
+        public Entry<MemorySegment> get(MemorySegment key) {
+            Entry<MemorySegment> result = getInMemory(key);
+            if (result == null) {
+                result = storage.get(key);
+            }
+            if (result instanceof OperandEntry) {
+                result = resolve(key);
+            }
+
+            return (result == null || result.isTombstone()) ? null : result;
+        }
+
+        // null if neither memory knows the key, tombstone if it is removed by a range
+        private Entry<MemorySegment> getInMemory(MemorySegment key) {
+            Entry<MemorySegment> result = memory.get(key, version);
+            if (result == null && memoryRemoved().covers(key)) {
+                return new BaseEntry<>(key, null);
+            }
+            if (result == null) {
+                result = flushing.get(key, version);
+            }
+            if (result == null && flushing.removed(version).covers(key)) {
+                return new BaseEntry<>(key, null);
+            }
+            return result;
+        }
+
+        // entry which is not in the memory, storage entries are valid while the storage is pinned
+        public Entry<MemorySegment> getPersisted(MemorySegment key) {
+            Entry<MemorySegment> result = getInMemory(key);
+            return result == null ? storage.get(key) : result;
+        }
+
+        // memory is bounded by the flush threshold, so it is walked, disk data is estimated by the indexes
+        public Estimate estimate(MemorySegment from, MemorySegment to) {
+            Estimate onDisk = storage.estimate(from, to);
+            Estimate inMemory = memory.estimate(from, to, version);
+            Estimate inFlushing = flushing.estimate(from, to, version);
+            return new Estimate(
+                    onDisk.count() + inMemory.count() + inFlushing.count(),
+                    onDisk.byteSize() + inMemory.byteSize() + inFlushing.byteSize()
+            );
+        }
+
+        // the largest sstable stands for the storage, entries shadowed in memory are counted twice
+        public long splitSize(MemorySegment from, MemorySegment to) {
+            return storage.splitRecordsCount(from, to)
+                    + memory.estimate(from, to, version).count()
+                    + flushing.estimate(from, to, version).count();
+        }
+
+        public List<Entry<MemorySegment>> getAll(Collection<MemorySegment> keys) {
+            MemorySegment[] sortedKeys = keys.toArray(new MemorySegment[0]);
+            Arrays.sort(sortedKeys, MemorySegmentComparator.INSTANCE);
+
+            @SuppressWarnings("unchecked")
+            Entry<MemorySegment>[] found = (Entry<MemorySegment>[]) new Entry<?>[sortedKeys.length];
+            for (int i = 0; i < sortedKeys.length; i++) {
+                found[i] = getInMemory(sortedKeys[i]);
+            }
+            storage.getAll(sortedKeys, found);
+            for (int i = 0; i < sortedKeys.length; i++) {
+                if (found[i] instanceof OperandEntry) {
+                    found[i] = resolve(sortedKeys[i]);
+                }
+            }
+
+            List<Entry<MemorySegment>> result = new ArrayList<>(sortedKeys.length);
+            for (MemorySegment key : keys) {
+                int index = Arrays.binarySearch(sortedKeys, key, MemorySegmentComparator.INSTANCE);
+                Entry<MemorySegment> entry = found[index];
+                result.add(entry == null || entry.isTombstone() ? null : entry);
+            }
+            return result;
+        }
+    }
+
+    // read-only view of the state, keeps its storage mapped until closed, so values are read in place
+    private static class Snapshot implements Dao<MemorySegment, Entry<MemorySegment>> {
+        private final State state;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Snapshot(State state) {
+            this.state = state;
+        }
+
+        private State accessState() {
+            if (closed.get()) {
+                throw new IllegalStateException("Snapshot is already closed");
+            }
+            return state;
+        }
+
+        // iterators are valid until the snapshot is closed, cursors pin the state on their own
+        @Override
+        public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
+            MemorySegment keyFrom = from == null ? VERY_FIRST_KEY : from;
+            return new TombstoneFilteringIterator(accessState().get(keyFrom, to), null);
+        }
+
+        @Override
+        public Cursor<Entry<MemorySegment>> cursor(MemorySegment from, MemorySegment to) {
+            MemorySegment keyFrom = from == null ? VERY_FIRST_KEY : from;
+            State state = acquireState();
+            try {
+                return new TombstoneFilteringIterator(state.get(keyFrom, to), state);
+            } catch (RuntimeException e) {
+                state.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public Iterator<Entry<MemorySegment>> getDescending(MemorySegment from, MemorySegment to) {
+            MemorySegment keyFrom = from == null ? VERY_FIRST_KEY : from;
+            return new TombstoneFilteringIterator(accessState().getDescending(keyFrom, to), null);
+        }
+
+        @Override
+        public Iterator<Entry<MemorySegment>> prefix(MemorySegment prefix) {
+            return new TombstoneFilteringIterator(accessState().prefix(prefix), null);
+        }
+
+        @Override
+        public Entry<MemorySegment> get(MemorySegment key) {
+            return accessState().get(key);
+        }
+
+        @Override
+        public List<Entry<MemorySegment>> getAll(Collection<MemorySegment> keys) {
+            return accessState().getAll(keys);
+        }
+
+        @Override
+        public Estimate estimate(MemorySegment from, MemorySegment to) {
+            return accessState().estimate(from == null ? VERY_FIRST_KEY : from, to);
+        }
+
+        // extra pin, so the state outlives the snapshot closed concurrently
+        private State acquireState() {
+            State state = accessState();
+            if (!state.acquire()) {
+                throw new IllegalStateException("Snapshot is already closed");
+            }
+            return state;
+        }
+
+        @Override
+        public Dao<MemorySegment, Entry<MemorySegment>> snapshot() {
+            return new Snapshot(acquireState());
+        }
+
+        @Override
+        public void upsert(Entry<MemorySegment> entry) {
+            throw new UnsupportedOperationException("Read-only snapshot");
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                state.release();
+            }
+        }
     }
 
     private static class Memory {
 
-        static final Memory EMPTY = new Memory(-1);
+        static final Memory EMPTY = new Memory(-1, null);
+        // returned by replace() if the key is mapped to another entry
+        static final long NOT_REPLACED = Long.MIN_VALUE;
         private final AtomicLong size = new AtomicLong();
         private final AtomicBoolean oversized = new AtomicBoolean();
+        // range tombstones by the number of the write which made them, changed under the upsert write lock only,
+        // the ones open readers see are kept
+        private final ConcurrentSkipListMap<Long, RangeTombstones> removed =
+                new ConcurrentSkipListMap<>(Map.of(0L, RangeTombstones.EMPTY));
 
-        private final ConcurrentSkipListMap<MemorySegment, Entry<MemorySegment>> delegate =
+        private final ConcurrentSkipListMap<MemorySegment, Version> delegate =
                 new ConcurrentSkipListMap<>(MemorySegmentComparator.INSTANCE);
 
         private final long sizeThreshold;
+        private final Versions versions;
 
-        Memory(long sizeThreshold) {
+        Memory(long sizeThreshold, Versions versions) {
             this.sizeThreshold = sizeThreshold;
+            this.versions = versions;
         }
 
         public boolean isEmpty() {
-            return delegate.isEmpty();
+            return delegate.isEmpty() && removed().isEmpty();
+        }
+
+        public RangeTombstones removed() {
+            return removed(Versions.LATEST);
+        }
+
+        public RangeTombstones removed(long version) {
+            Map.Entry<Long, RangeTombstones> removedAt = removed.floorEntry(version);
+            return removedAt == null ? RangeTombstones.EMPTY : removedAt.getValue();
+        }
+
+        // entries of the range in memory are dropped, the range tombstone hides older ones on disk
+        public boolean deleteRange(MemorySegment from, MemorySegment to) {
+            if (sizeThreshold == -1) {
+                throw new UnsupportedOperationException("Read-only map");
+            }
+            long number = versions.next();
+            try {
+                return grow(deleteRangeAndGetSizeDelta(from, to, number));
+            } finally {
+                versions.commit(number);
+            }
         }
 
+        private long deleteRangeAndGetSizeDelta(MemorySegment from, MemorySegment to, long number) {
+            // the tombstone goes first, so concurrent readers never see older values in the range
+            RangeTombstones tombstones = removed().with(from, to);
+            removed.put(number, tombstones);
+            long sizeDelta = tombstones.byteSize();
+            // the previous tombstones are dropped unless an open reader still sees them
+            for (Iterator<Map.Entry<Long, RangeTombstones>> iterator = removed.headMap(number).entrySet().iterator();
+                    iterator.hasNext(); ) {
+                Map.Entry<Long, RangeTombstones> previous = iterator.next();
+                Long reader = versions.readerBelow(removed.higherKey(previous.getKey()));
+                if (reader == null || reader < previous.getKey()) {
+                    iterator.remove();
+                    sizeDelta -= previous.getValue().byteSize();
+                }
+            }
+
+            Map<MemorySegment, Version> range = to == null
+                    ? delegate.tailMap(from)
+                    : delegate.subMap(from, to);
+            if (versions.readerBelow(number) == null) {
+                for (Version version : range.values()) {
+                    sizeDelta -= version.byteSize;
+                }
+                range.clear();
+                return sizeDelta;
+            }
+            // open readers keep seeing the entries, so they are shadowed by tombstones instead
+            for (Map.Entry<MemorySegment, Version> entry : range.entrySet()) {
+                Version version = push(entry.getValue(), new BaseEntry<>(entry.getKey(), null), number);
+                range.put(entry.getKey(), version);
+                sizeDelta += version.byteSize - entry.getValue().byteSize;
+            }
+            return sizeDelta;
+        }
+
+        // the latest entries
         public Collection<Entry<MemorySegment>> values() {
-            return delegate.values();
+            return new AbstractCollection<>() {
+                @Override
+                public Iterator<Entry<MemorySegment>> iterator() {
+                    return get(VERY_FIRST_KEY, null, Versions.LATEST);
+                }
+
+                @Override
+                public int size() {
+                    return delegate.size();
+                }
+            };
         }
 
         public boolean put(MemorySegment key, Entry<MemorySegment> entry) {
             if (sizeThreshold == -1) {
                 throw new UnsupportedOperationException("Read-only map");
             }
-            Entry<MemorySegment> segmentEntry = delegate.put(key, entry);
-            long sizeDelta = Storage.getSizeOnDisk(entry);
-            if (segmentEntry != null) {
-                sizeDelta -= Storage.getSizeOnDisk(segmentEntry);
+            long number = versions.next();
+            try {
+                return grow(putAndGetSizeDelta(key, entry, number));
+            } finally {
+                versions.commit(number);
+            }
+        }
+
+        // entries of the batch share the number, so readers see either all or none of them
+        public boolean putAll(Iterable<Entry<MemorySegment>> entries) {
+            if (sizeThreshold == -1) {
+                throw new UnsupportedOperationException("Read-only map");
+            }
+            long number = versions.next();
+            try {
+                long sizeDelta = 0;
+                for (Entry<MemorySegment> entry : entries) {
+                    sizeDelta += putAndGetSizeDelta(entry.key(), entry, number);
+                }
+                return grow(sizeDelta);
+            } finally {
+                versions.commit(number);
+            }
+        }
+
+        private long putAndGetSizeDelta(MemorySegment key, Entry<MemorySegment> entry, long number) {
+            // compute may call the function more than once, the last call wins
+            long[] sizeDelta = new long[1];
+            delegate.compute(key, (k, current) -> {
+                Version version = push(current, entry, number);
+                sizeDelta[0] = version.byteSize - (current == null ? 0 : current.byteSize);
+                return version;
+            });
+            return sizeDelta[0];
+        }
+
+        // operand is folded into the entry in memory right away, otherwise it waits for the older ones on disk
+        public boolean merge(OperandEntry operand, EntryMerger merger) {
+            if (sizeThreshold == -1) {
+                throw new UnsupportedOperationException("Read-only map");
+            }
+            long number = versions.next();
+            try {
+                // compute may call the function more than once, the last call wins
+                long[] sizeDelta = new long[1];
+                delegate.compute(operand.key(), (key, current) -> {
+                    Entry<MemorySegment> merged = current == null ? operand : merger.apply(current.entry, operand);
+                    Version version = push(current, merged, number);
+                    sizeDelta[0] = version.byteSize - (current == null ? 0 : current.byteSize);
+                    return version;
+                });
+                return grow(sizeDelta[0]);
+            } finally {
+                versions.commit(number);
+            }
+        }
+
+        // atomic against concurrent writes: fails if the key is not mapped to current (null - absent) anymore,
+        // returns the size delta to grow by otherwise
+        public long replace(MemorySegment key, Entry<MemorySegment> current, Entry<MemorySegment> entry) {
+            if (sizeThreshold == -1) {
+                throw new UnsupportedOperationException("Read-only map");
+            }
+            Version currentVersion = delegate.get(key);
+            if ((currentVersion == null ? null : currentVersion.entry) != current) {
+                return NOT_REPLACED;
             }
+            long number = versions.next();
+            try {
+                Version version = push(currentVersion, entry, number);
+                if (currentVersion == null) {
+                    return delegate.putIfAbsent(key, version) == null ? version.byteSize : NOT_REPLACED;
+                }
+                return delegate.replace(key, currentVersion, version)
+                        ? version.byteSize - currentVersion.byteSize
+                        : NOT_REPLACED;
+            } finally {
+                versions.commit(number);
+            }
+        }
+
+        // the entry on top of the versions open readers still see
+        private Version push(Version current, Entry<MemorySegment> entry, long number) {
+            // the entry of the same batch is overwritten
+            Version older = current != null && current.number == number ? current.older : current;
+            return new Version(entry, number, Version.visible(older, number, versions));
+        }
+
+        public boolean grow(long sizeDelta) {
             long newSize = size.addAndGet(sizeDelta);
             if (newSize > sizeThreshold) {
                 return !oversized.getAndSet(true);
@@ -419,16 +1264,171 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             return !oversized.getAndSet(true);
         }
 
-        public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to) {
-            return to == null
-                    ? delegate.tailMap(from).values().iterator()
-                    : delegate.subMap(from, to).values().iterator();
+        public Estimate estimate(MemorySegment from, MemorySegment to, long version) {
+            long rangeCount = 0;
+            long rangeSize = 0;
+            for (Iterator<Entry<MemorySegment>> iterator = get(from, to, version); iterator.hasNext(); ) {
+                rangeCount++;
+                rangeSize += Storage.getSizeOnDisk(iterator.next());
+            }
+            return new Estimate(rangeCount, rangeSize);
+        }
+
+        // entries visible to the reader of the version
+        public Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to, long version) {
+            Map<MemorySegment, Version> range = to == null ? delegate.tailMap(from) : delegate.subMap(from, to);
+            return Version.entries(range.values().iterator(), version);
+        }
+
+        public Iterator<Entry<MemorySegment>> getDescending(MemorySegment from, MemorySegment to, long version) {
+            Map<MemorySegment, Version> range = to == null
+                    ? delegate.tailMap(from).descendingMap()
+                    : delegate.subMap(from, to).descendingMap();
+            return Version.entries(range.values().iterator(), version);
         }
 
         public Entry<MemorySegment> get(MemorySegment key) {
-            return delegate.get(key);
+            return get(key, Versions.LATEST);
+        }
+
+        public Entry<MemorySegment> get(MemorySegment key, long version) {
+            Version latest = delegate.get(key);
+            return latest == null ? null : latest.at(version);
+        }
+    }
+
+    // an entry of memory with the older ones of its key, which readers opened before it may still see
+    private static final class Version {
+        final Entry<MemorySegment> entry;
+        final long number;
+        final Version older;
+        // of all the entries, they are all kept in memory
+        final long byteSize;
+
+        Version(Entry<MemorySegment> entry, long number, Version older) {
+            this.entry = entry;
+            this.number = number;
+            this.older = older;
+            this.byteSize = Storage.getSizeOnDisk(entry) + (older == null ? 0 : older.byteSize);
+        }
+
+        // the latest entry written up to the version, null if the key was written after it
+        Entry<MemorySegment> at(long version) {
+            Version current = this;
+            while (current != null && current.number > version) {
+                current = current.older;
+            }
+            return current == null ? null : current.entry;
+        }
+
+        // the versions under the one of the number seen by open readers, that is the latest one up to each reader,
+        // so there are no more of them than the readers
+        static Version visible(Version version, long number, Versions versions) {
+            List<Version> kept = null;
+            Long reader = versions.readerBelow(number);
+            for (Version current = version; current != null && reader != null; current = current.older) {
+                if (current.number <= reader) {
+                    if (kept == null) {
+                        kept = new ArrayList<>();
+                    }
+                    kept.add(current);
+                    // readers between the versions see this one as well
+                    reader = versions.readerBelow(current.number);
+                }
+            }
+            if (kept == null) {
+                return null;
+            }
+            // the versions are immutable as readers walk them concurrently, unchanged tails are shared
+            Version visible = null;
+            for (int i = kept.size() - 1; i >= 0; i--) {
+                Version current = kept.get(i);
+                visible = current.older == visible ? current : new Version(current.entry, current.number, visible);
+            }
+            return visible;
+        }
+
+        static Iterator<Entry<MemorySegment>> entries(Iterator<Version> versions, long version) {
+            return new Iterator<>() {
+                private Entry<MemorySegment> next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && versions.hasNext()) {
+                        next = versions.next().at(version);
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Entry<MemorySegment> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Entry<MemorySegment> entry = next;
+                    next = null;
+                    return entry;
+                }
+            };
         }
     }
 
+    // numbers writes to memory, a reader sees the entries written up to the number it is opened at
+    private static final class Versions {
+        // the version of readers which see all the entries
+        static final long LATEST = Long.MAX_VALUE;
+
+        // guarded by this
+        private long last;
+        // numbers of writes in progress, guarded by this
+        private final NavigableSet<Long> writing = new TreeSet<>();
+        // numbers of open readers with their counts
+        private final ConcurrentSkipListMap<Long, Integer> readers = new ConcurrentSkipListMap<>();
+
+        // the write has to be committed once it is applied
+        synchronized long next() {
+            last++;
+            writing.add(last);
+            return last;
+        }
+
+        synchronized void commit(long number) {
+            writing.remove(number);
+            notifyAll();
+        }
+
+        // the version of the writes made so far, the ones in progress are awaited,
+        // so the reader sees every write either whole or not at all
+        synchronized long open() {
+            long version = last;
+            // later writes get greater numbers and keep the entries the reader sees
+            retain(version);
+            boolean interrupted = false;
+            while (!writing.isEmpty() && writing.first() <= version) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return version;
+        }
+
+        void retain(long version) {
+            readers.merge(version, 1, Integer::sum);
+        }
+
+        void release(long version) {
+            readers.computeIfPresent(version, (number, count) -> count == 1 ? null : count - 1);
+        }
+
+        // the version of the latest reader opened before the number, null if there are none
+        Long readerBelow(long number) {
+            return readers.lowerKey(number);
+        }
+    }
 
 }
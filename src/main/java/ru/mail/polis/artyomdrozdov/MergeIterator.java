@@ -5,24 +5,39 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.function.BinaryOperator;
 
 public class MergeIterator<E> implements Iterator<E> {
 
     private final PriorityQueue<IteratorWrapper<E>> iterators;
     private final Comparator<E> comparator;
+    private final BinaryOperator<E> fold;
 
-    private MergeIterator(PriorityQueue<IteratorWrapper<E>> iterators, Comparator<E> comparator) {
+    private MergeIterator(
+            PriorityQueue<IteratorWrapper<E>> iterators,
+            Comparator<E> comparator,
+            BinaryOperator<E> fold) {
         this.iterators = iterators;
         this.comparator = comparator;
+        this.fold = fold;
     }
 
     // iterators are strictly ordered by comparator (previous element always < next element)
     public static <E> Iterator<E> of(List<Iterator<E>> iterators, Comparator<E> comparator) {
+        return of(iterators, comparator, null);
+    }
+
+    // fold(older, newer) combines equal elements from the newest one, older is null after the oldest one
+    // without fold the newest element wins
+    public static <E> Iterator<E> of(List<Iterator<E>> iterators, Comparator<E> comparator, BinaryOperator<E> fold) {
         switch (iterators.size()) {
             case 0:
                 return Collections.emptyIterator();
             case 1:
-                return iterators.get(0);
+                if (fold == null) {
+                    return iterators.get(0);
+                }
+                break;
             default:
                 // Just go on
         }
@@ -43,7 +58,7 @@ public class MergeIterator<E> implements Iterator<E> {
             }
         }
 
-        return new MergeIterator<>(queue, comparator);
+        return new MergeIterator<>(queue, comparator, fold);
     }
 
     @Override
@@ -63,12 +78,19 @@ public class MergeIterator<E> implements Iterator<E> {
             }
 
             iterators.remove();
-            candidate.next();
+            E older = candidate.next();
+            if (fold != null) {
+                next = fold.apply(older, next);
+            }
             if (candidate.hasNext()) {
                 iterators.add(candidate);
             }
         }
 
+        if (fold != null) {
+            next = fold.apply(null, next);
+        }
+
         if (iterator.hasNext()) {
             iterators.add(iterator);
         }
@@ -0,0 +1,8 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Entry;
+
+// merge operand which is not folded into a value yet
+record OperandEntry(MemorySegment key, MemorySegment value) implements Entry<MemorySegment> {
+}
@@ -0,0 +1,151 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Entry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// removed key ranges [from; to), to == null is unbounded
+// ranges are sorted and disjoint, so a key is checked by a single binary search
+final class RangeTombstones {
+
+    static final RangeTombstones EMPTY = new RangeTombstones(new MemorySegment[0], new MemorySegment[0]);
+
+    private final MemorySegment[] froms;
+    private final MemorySegment[] tos;
+
+    private RangeTombstones(MemorySegment[] froms, MemorySegment[] tos) {
+        this.froms = froms;
+        this.tos = tos;
+    }
+
+    static RangeTombstones of(List<MemorySegment[]> ranges) {
+        if (ranges.isEmpty()) {
+            return EMPTY;
+        }
+        MemorySegment[][] sorted = ranges.toArray(new MemorySegment[0][]);
+        Arrays.sort(sorted, Comparator.comparing(range -> range[0], MemorySegmentComparator.INSTANCE));
+
+        List<MemorySegment> froms = new ArrayList<>(sorted.length);
+        List<MemorySegment> tos = new ArrayList<>(sorted.length);
+        for (MemorySegment[] range : sorted) {
+            int last = froms.size() - 1;
+            if (last >= 0 && (tos.get(last) == null || compare(range[0], tos.get(last)) <= 0)) {
+                // overlaps or touches the previous one
+                if (tos.get(last) != null && (range[1] == null || compare(range[1], tos.get(last)) > 0)) {
+                    tos.set(last, range[1]);
+                }
+            } else {
+                froms.add(range[0]);
+                tos.add(range[1]);
+            }
+        }
+        return new RangeTombstones(froms.toArray(new MemorySegment[0]), tos.toArray(new MemorySegment[0]));
+    }
+
+    boolean isEmpty() {
+        return froms.length == 0;
+    }
+
+    int size() {
+        return froms.length;
+    }
+
+    MemorySegment from(int index) {
+        return froms[index];
+    }
+
+    MemorySegment to(int index) {
+        return tos[index];
+    }
+
+    RangeTombstones with(MemorySegment from, MemorySegment to) {
+        List<MemorySegment[]> ranges = ranges();
+        ranges.add(new MemorySegment[]{from, to});
+        return of(ranges);
+    }
+
+    RangeTombstones union(RangeTombstones other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        List<MemorySegment[]> ranges = ranges();
+        ranges.addAll(other.ranges());
+        return of(ranges);
+    }
+
+    private List<MemorySegment[]> ranges() {
+        List<MemorySegment[]> ranges = new ArrayList<>(froms.length + 1);
+        for (int i = 0; i < froms.length; i++) {
+            ranges.add(new MemorySegment[]{froms[i], tos[i]});
+        }
+        return ranges;
+    }
+
+    boolean covers(MemorySegment key) {
+        // the last range starting not after the key
+        int left = 0;
+        int right = froms.length - 1;
+        while (left <= right) {
+            int mid = (left + right) >>> 1;
+            if (compare(froms[mid], key) <= 0) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return right >= 0 && (tos[right] == null || compare(key, tos[right]) < 0);
+    }
+
+    <E extends Entry<MemorySegment>> Iterator<E> filter(Iterator<E> iterator) {
+        if (isEmpty()) {
+            return iterator;
+        }
+        return new Iterator<>() {
+            private E next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && iterator.hasNext()) {
+                    E candidate = iterator.next();
+                    if (!covers(candidate.key())) {
+                        next = candidate;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("...");
+                }
+                E result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    // on disk: (count)((fromSize/from/toSize/to)...), toSize is -1 for the unbounded range
+    long byteSize() {
+        long size = Long.BYTES;
+        for (int i = 0; i < froms.length; i++) {
+            size += Long.BYTES + froms[i].byteSize() + Long.BYTES + (tos[i] == null ? 0 : tos[i].byteSize());
+        }
+        return size;
+    }
+
+    private static int compare(MemorySegment first, MemorySegment second) {
+        return MemorySegmentComparator.INSTANCE.compare(first, second);
+    }
+
+}
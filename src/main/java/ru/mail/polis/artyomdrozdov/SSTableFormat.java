@@ -0,0 +1,92 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Entry;
+
+import java.util.Iterator;
+import java.util.function.Predicate;
+
+// reading of sstables of some file versions, see SSTableFormats
+// every version starts with (fileVersion)(entryCount)(flags) and ends with the footer described in Storage,
+// a format knows how entries and their index are laid out between them
+interface SSTableFormat {
+
+    // the first key of an sstable with entries
+    MemorySegment firstKey(MemorySegment sstable);
+
+    // index of the key or ~index of the first greater one
+    long entryIndex(MemorySegment sstable, MemorySegment key);
+
+    Entry<MemorySegment> entryAt(MemorySegment sstable, long index, ValueLogs valueLogs);
+
+    // approximate bytes of entries [fromIndex; toIndex) with their index records,
+    // formats with blocks interpolate positions inside a block as if its entries were of the same size
+    long byteSize(MemorySegment sstable, long fromIndex, long toIndex);
+
+    // the entry with the key or null
+    default Entry<MemorySegment> get(MemorySegment sstable, MemorySegment key, ValueLogs valueLogs) {
+        long index = entryIndex(sstable, key);
+        return index >= 0 ? entryAt(sstable, index, valueLogs) : null;
+    }
+
+    // keys are sorted, only absent (null) results are looked up,
+    // keys the sstable does not contain for sure are skipped by formats with expensive lookups
+    default void getAll(
+            MemorySegment sstable,
+            MemorySegment[] keys,
+            Entry<MemorySegment>[] results,
+            ValueLogs valueLogs,
+            Predicate<MemorySegment> mightContain) {
+        for (int k = 0; k < keys.length; k++) {
+            if (results[k] == null && mightContain.test(keys[k])) {
+                results[k] = get(sstable, keys[k], valueLogs);
+            }
+        }
+    }
+
+    // entries [fromIndex; toIndex)
+    default Iterator<Entry<MemorySegment>> iterate(
+            MemorySegment sstable,
+            long fromIndex,
+            long toIndex,
+            ValueLogs valueLogs) {
+        return new Iterator<>() {
+            long pos = fromIndex;
+
+            @Override
+            public boolean hasNext() {
+                return pos < toIndex;
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                Entry<MemorySegment> entry = entryAt(sstable, pos, valueLogs);
+                pos++;
+                return entry;
+            }
+        };
+    }
+
+    // entries [fromIndex; toIndex) from the last one
+    default Iterator<Entry<MemorySegment>> iterateDescending(
+            MemorySegment sstable,
+            long fromIndex,
+            long toIndex,
+            ValueLogs valueLogs) {
+        return new Iterator<>() {
+            long pos = toIndex - 1;
+
+            @Override
+            public boolean hasNext() {
+                return pos >= fromIndex;
+            }
+
+            @Override
+            public Entry<MemorySegment> next() {
+                Entry<MemorySegment> entry = entryAt(sstable, pos, valueLogs);
+                pos--;
+                return entry;
+            }
+        };
+    }
+}
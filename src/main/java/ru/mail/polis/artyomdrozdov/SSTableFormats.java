@@ -0,0 +1,40 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+// formats by the file version in the header, a new version is rolled out by registering its format here:
+// files of older versions stay readable next to new ones and are rewritten in the latest version by compaction
+final class SSTableFormats {
+
+    // new files are written in it
+    static final long LATEST_VERSION = BlockSSTable.VERSION;
+
+    private static final SSTableFormat[] FORMATS = {
+            // 0: the dense index
+            DenseSSTable.FORMAT,
+            // 1-3: blocks with fixed long sizes, varint sizes, key prefixes in index records and restarts
+            BlockSSTable.FORMAT,
+            BlockSSTable.FORMAT,
+            BlockSSTable.FORMAT,
+    };
+
+    private SSTableFormats() {
+    }
+
+    static boolean isSupported(long version) {
+        return version >= 0 && version < FORMATS.length && FORMATS[(int) version] != null;
+    }
+
+    static SSTableFormat of(MemorySegment sstable) {
+        long version = version(sstable);
+        if (!isSupported(version)) {
+            throw new IllegalStateException("Unknown file version: " + version);
+        }
+        return FORMATS[(int) version];
+    }
+
+    static long version(MemorySegment sstable) {
+        return MemoryAccess.getLongAtOffset(sstable, 0);
+    }
+}
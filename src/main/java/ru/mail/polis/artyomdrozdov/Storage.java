@@ -6,6 +6,7 @@ import jdk.incubator.foreign.ResourceScope;
 import ru.mail.polis.BaseEntry;
 import ru.mail.polis.Config;
 import ru.mail.polis.Entry;
+import ru.mail.polis.Estimate;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -15,14 +16,26 @@ import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 class Storage implements Closeable {
 
-    private static final Cleaner CLEANER = Cleaner.create(new ThreadFactory() {
+    // unmaps scopes of lost storages and releases storages pinned by lost iterators, see MemorySegmentDao
+    static final Cleaner CLEANER = Cleaner.create(new ThreadFactory() {
         @Override
         public Thread newThread(Runnable r) {
             return new Thread(r, "Storage-Cleaner") {
@@ -35,52 +48,230 @@ class Storage implements Closeable {
         }
     });
 
-    private static final long VERSION = 0;
-    private static final int INDEX_HEADER_SIZE = Long.BYTES * 3;
-    private static final int INDEX_RECORD_SIZE = Long.BYTES;
+    // (fileVersion)(entryCount)(flags) of every format, see SSTableFormats
+    private static final int HEADER_SIZE = Long.BYTES * 3;
+
+    static final long FLAG_TOMBSTONES = 1;
+    static final long FLAG_PREFIX_FILTER = 1 << 1;
+    private static final long FLAG_OPERANDS = 1 << 2;
+    private static final long FLAG_RANGE_TOMBSTONES = 1 << 3;
+    // keys of blocks are stored with shared prefixes, see BlockSSTable
+    static final long FLAG_SHARED_KEY_PREFIXES = 1 << 4;
+    static final long FLAG_COMPRESSED_BLOCKS = 1 << 5;
+    private static final long FLAG_KEY_FILTER = 1 << 6;
+    // the last key is stored after the key filter, the first one is the first key of the block index
+    private static final long FLAG_LAST_KEY = 1 << 7;
+    // blocks, the header and the metadata are checksummed, see BlockSSTable
+    static final long FLAG_CHECKSUMS = 1 << 8;
+    // the block index is followed by its Eytzinger-ordered copy, see BlockSSTable
+    static final long FLAG_EYTZINGER_INDEX = 1 << 9;
+    // some values are pointers to value logs, see ValueLogs
+    private static final long FLAG_VALUE_LOG = 1 << 10;
+    // valueSize of a merge operand is encoded as OPERAND_SIZE_BASE - size, -1 is a tombstone
+    private static final long OPERAND_SIZE_BASE = -2;
+    // key prefixes (in bytes) put to the prefix filter, ascending
+    private static final long[] PREFIX_FILTER_LENGTHS = {4, 8, 16, 32};
 
     private static final String FILE_NAME = "data";
     private static final String FILE_EXT = ".dat";
     private static final String FILE_EXT_TMP = ".tmp";
-    private static final String COMPACTED_FILE = FILE_NAME + "_compacted_" + FILE_EXT;
+    // sstables and their temporary files, ones not in the manifest are left by crashes
+    private static final Pattern FILE_PATTERN = Pattern.compile(
+            FILE_NAME + "(\\d+)" + Pattern.quote(FILE_EXT) + "(" + Pattern.quote(FILE_EXT_TMP) + ")?");
+    // the result of a compaction written before the manifest
+    private static final String LEGACY_COMPACTED_FILE = FILE_NAME + "_compacted_" + FILE_EXT;
 
+    // sstables are the ones of the manifest, a missing one fails the load
     static Storage load(Config config) throws IOException {
+        return load(config, null);
+    }
+
+    // sstables of the previous storage were verified by its load, so only added ones are,
+    // files changed after that are found by scrub
+    static Storage load(Config config, Storage previous) throws IOException {
         Path basePath = config.basePath();
-        Path compactedFile = config.basePath().resolve(COMPACTED_FILE);
-        if (Files.exists(compactedFile)) {
-            finishCompact(config, compactedFile);
+        Manifest manifest = Manifest.load(basePath);
+        if (manifest == null) {
+            migrate(basePath);
+            manifest = Manifest.load(basePath);
         }
+        deleteUnreferenced(basePath, manifest);
 
+        Set<Long> verifiedIds = new HashSet<>();
+        if (previous != null) {
+            for (Manifest.SSTable sstable : previous.manifest.sstables()) {
+                verifiedIds.add(sstable.id());
+            }
+        }
         ArrayList<MemorySegment> sstables = new ArrayList<>();
         ResourceScope scope = ResourceScope.newSharedScope(CLEANER);
-
-        // FIXME check existing files
-        for (int i = 0; ; i++) {
-            Path nextFile = basePath.resolve(FILE_NAME + i + FILE_EXT);
+        for (Manifest.SSTable info : manifest.sstables()) {
+            Path file = file(basePath, info.id());
             try {
-                sstables.add(mapForRead(scope, nextFile));
-            } catch (NoSuchFileException e) {
-                break;
+                MemorySegment sstable = mapForRead(scope, file);
+                if (!verifiedIds.contains(info.id())) {
+                    verify(sstable, file);
+                }
+                sstables.add(sstable);
+            } catch (IOException e) {
+                scope.close();
+                throw e;
             }
         }
+        ValueLogs valueLogs;
+        try {
+            valueLogs = ValueLogs.load(basePath, scope);
+        } catch (IOException e) {
+            scope.close();
+            throw e;
+        }
+
+        ArrayList<RangeTombstones> rangeTombstones = new ArrayList<>(sstables.size());
+        for (MemorySegment sstable : sstables) {
+            rangeTombstones.add(readRangeTombstones(sstable));
+        }
+
+        long flags = sstables.isEmpty() ? 0 : MemoryAccess.getLongAtOffset(sstables.get(0), 16);
+        return new Storage(
+                scope,
+                manifest,
+                sstables,
+                valueLogs,
+                rangeTombstones,
+                (flags & (FLAG_TOMBSTONES | FLAG_RANGE_TOMBSTONES)) != 0,
+                (flags & FLAG_OPERANDS) != 0
+        );
+    }
+
+    // sstables written before the manifest are data0.dat, data1.dat, ... from the oldest one,
+    // they are recorded to the manifest once
+    private static void migrate(Path basePath) throws IOException {
+        Path compactedFile = basePath.resolve(LEGACY_COMPACTED_FILE);
+        if (Files.exists(compactedFile)) {
+            // the compaction was not finished, so any sstable left is compacted already
+            for (long id : fileIds(basePath)) {
+                Files.delete(file(basePath, id));
+            }
+            Files.move(compactedFile, file(basePath, 0), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        List<Manifest.SSTable> sstables = new ArrayList<>();
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            ValueLogs valueLogs = ValueLogs.load(basePath, scope);
+            for (long id : fileIds(basePath)) {
+                Path file = file(basePath, id);
+                MemorySegment sstable = mapForRead(scope, file);
+                verify(sstable, file);
+                boolean empty = recordsCount(sstable) == 0;
+                sstables.add(new Manifest.SSTable(
+                        id,
+                        Manifest.FLUSHED_LEVEL,
+                        empty ? null : SSTableFormats.of(sstable).firstKey(sstable),
+                        empty ? null : lastKey(sstable, valueLogs)
+                ));
+            }
+            long nextId = sstables.isEmpty() ? 0 : sstables.get(sstables.size() - 1).id() + 1;
+            Manifest.create(basePath, sstables, nextId);
+        }
+    }
+
+    // ids of sstables in the directory, ascending
+    private static long[] fileIds(Path basePath) throws IOException {
+        try (Stream<Path> files = Files.list(basePath)) {
+            return files.map(file -> FILE_PATTERN.matcher(file.getFileName().toString()))
+                    .filter(matcher -> matcher.matches() && matcher.group(2) == null)
+                    .mapToLong(matcher -> Long.parseLong(matcher.group(1)))
+                    .sorted()
+                    .toArray();
+        }
+    }
+
+    // sstables of unfinished flushes and compacted ones not deleted before a crash
+    private static void deleteUnreferenced(Path basePath, Manifest manifest) throws IOException {
+        Set<Long> liveIds = new HashSet<>();
+        for (Manifest.SSTable sstable : manifest.sstables()) {
+            liveIds.add(sstable.id());
+        }
+        List<Path> unreferenced;
+        try (Stream<Path> files = Files.list(basePath)) {
+            unreferenced = files.filter(file -> {
+                Matcher matcher = FILE_PATTERN.matcher(file.getFileName().toString());
+                return matcher.matches()
+                        && (matcher.group(2) != null || !liveIds.contains(Long.parseLong(matcher.group(1))));
+            }).toList();
+        }
+        for (Path file : unreferenced) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static Path file(Path basePath, long id) {
+        return basePath.resolve(FILE_NAME + id + FILE_EXT);
+    }
+
+    // the header and the metadata are read on load anyway, blocks are verified by scrub only
+    private static void verify(MemorySegment sstable, Path file) throws CorruptedSSTableException {
+        if (sstable.byteSize() < HEADER_SIZE) {
+            throw new CorruptedSSTableException(file + ": truncated header");
+        }
+        if (!SSTableFormats.isSupported(SSTableFormats.version(sstable))) {
+            throw new CorruptedSSTableException(file + ": unknown file version " + SSTableFormats.version(sstable));
+        }
+        if (!BlockSSTable.isHeaderValid(sstable)) {
+            throw new CorruptedSSTableException(file + ": header checksum mismatch");
+        }
+        if (!BlockSSTable.isMetadataValid(sstable)) {
+            throw new CorruptedSSTableException(file + ": index or footer checksum mismatch");
+        }
+    }
 
-        boolean hasTombstones = !sstables.isEmpty() && MemoryAccess.getLongAtOffset(sstables.get(0), 16) == 1;
-        return new Storage(scope, sstables, hasTombstones);
+    private static RangeTombstones readRangeTombstones(MemorySegment sstable) {
+        if ((MemoryAccess.getLongAtOffset(sstable, 16) & FLAG_RANGE_TOMBSTONES) == 0) {
+            return RangeTombstones.EMPTY;
+        }
+        long offset = MemoryAccess.getLongAtOffset(sstable, sstable.byteSize() - 2 * Long.BYTES);
+        long count = MemoryAccess.getLongAtOffset(sstable, offset);
+        offset += Long.BYTES;
+        List<MemorySegment[]> ranges = new ArrayList<>();
+        for (long i = 0; i < count; i++) {
+            long fromSize = MemoryAccess.getLongAtOffset(sstable, offset);
+            MemorySegment from = sstable.asSlice(offset + Long.BYTES, fromSize);
+            offset += Long.BYTES + fromSize;
+            long toSize = MemoryAccess.getLongAtOffset(sstable, offset);
+            MemorySegment to = toSize == -1 ? null : sstable.asSlice(offset + Long.BYTES, toSize);
+            offset += Long.BYTES + Math.max(toSize, 0);
+            ranges.add(new MemorySegment[]{from, to});
+        }
+        return RangeTombstones.of(ranges);
     }
 
     // it is supposed that entries can not be changed externally during this method call
     static void save(
             Config config,
             Storage previousState,
-            Collection<Entry<MemorySegment>> entries) throws IOException {
-        int nextSSTableIndex = previousState.sstables.size();
-        Path sstablePath = config.basePath().resolve(FILE_NAME + nextSSTableIndex + FILE_EXT);
-        save(entries::iterator, sstablePath);
+            Collection<Entry<MemorySegment>> entries,
+            RangeTombstones rangeTombstones) throws IOException {
+        long id = previousState.manifest.nextId();
+        ValueLogs.Writer valueLogWriter =
+                new ValueLogs.Writer(previousState.valueLogs, config.valueLogThresholdBytes());
+        MemorySegment[] keyRange = save(
+                entries::iterator,
+                rangeTombstones,
+                file(config.basePath(), id),
+                config,
+                valueLogWriter
+        );
+        Manifest.SSTable sstable = new Manifest.SSTable(id, Manifest.FLUSHED_LEVEL, keyRange[0], keyRange[1]);
+        previousState.manifest.apply(List.of(sstable), List.of());
     }
 
-    private static void save(
+    // returns the first and the last keys of the sstable, nulls if it has no entries
+    private static MemorySegment[] save(
             Data entries,
-            Path sstablePath
+            RangeTombstones rangeTombstones,
+            Path sstablePath,
+            Config config,
+            ValueLogs.Writer valueLogWriter
     ) throws IOException {
 
         Path sstableTmpPath = sstablePath.resolveSibling(sstablePath.getFileName().toString() + FILE_EXT_TMP);
@@ -88,64 +279,168 @@ class Storage implements Closeable {
         Files.deleteIfExists(sstableTmpPath);
         Files.createFile(sstableTmpPath);
 
+        boolean compressed = config.compression() == Config.Compression.DEFLATE;
+        boolean eytzingerIndex = config.indexLayout() == Config.IndexLayout.EYTZINGER;
+        long fileSize;
+        MemorySegment firstKey;
+        MemorySegment lastKey;
         try (ResourceScope writeScope = ResourceScope.newConfinedScope()) {
-            long size = 0;
+            BlockSSTable.Layout layout = new BlockSSTable.Layout(compressed, eytzingerIndex);
             long entriesCount = 0;
+            long prefixesCount = 0;
             boolean hasTombstone = false;
+            boolean hasOperand = false;
+            boolean hasValuePointer = false;
+            MemorySegment previousKey = null;
             for (Iterator<Entry<MemorySegment>> iterator = entries.iterator(); iterator.hasNext(); ) {
-                Entry<MemorySegment> entry = iterator.next();
-                size += getSize(entry);
+                Entry<MemorySegment> entry = valueLogWriter.add(iterator.next());
+                layout.add(entry);
                 if (entry.isTombstone()) {
                     hasTombstone = true;
                 }
+                if (entry instanceof OperandEntry) {
+                    hasOperand = true;
+                }
+                if (entry instanceof ValueLogEntry) {
+                    hasValuePointer = true;
+                }
+                prefixesCount += newPrefixesCount(previousKey, entry.key());
+                previousKey = entry.key();
                 entriesCount++;
             }
 
-            long dataStart = INDEX_HEADER_SIZE + INDEX_RECORD_SIZE * entriesCount;
-
+            BloomFilter.Builder prefixFilter = new BloomFilter.Builder(prefixesCount);
+            BloomFilter.Builder keyFilter = new BloomFilter.Builder(entriesCount);
+            long prefixFilterSize = prefixFilter.byteSize();
+            long keyFilterSize = keyFilter.byteSize();
+            // previousKey is the last key now
+            long lastKeySize = previousKey == null ? 0 : Long.BYTES + previousKey.byteSize();
+            long rangeTombstonesSize = rangeTombstones.isEmpty() ? 0 : rangeTombstones.byteSize() + Long.BYTES;
+            long footerSize = prefixFilterSize + keyFilterSize + lastKeySize + rangeTombstonesSize + Long.BYTES;
+            // the size of compressed blocks is known after writing them, the file is truncated then
             MemorySegment nextSSTable = MemorySegment.mapFile(
                             sstableTmpPath,
                             0,
-                            dataStart + size,
+                            BlockSSTable.HEADER_SIZE + layout.maxByteSize() + footerSize,
                             FileChannel.MapMode.READ_WRITE,
                             writeScope
             );
 
-            long index = 0;
-            long offset = dataStart;
+            valueLogWriter.open(sstablePath.getParent(), writeScope);
+            BlockSSTable.Writer writer = new BlockSSTable.Writer(nextSSTable, compressed, eytzingerIndex);
+            previousKey = null;
+            firstKey = null;
             for (Iterator<Entry<MemorySegment>> iterator = entries.iterator(); iterator.hasNext(); ) {
-                Entry<MemorySegment> entry = iterator.next();
-                MemoryAccess.setLongAtOffset(nextSSTable, INDEX_HEADER_SIZE + index * INDEX_RECORD_SIZE, offset);
-
-                offset += writeRecord(nextSSTable, offset, entry.key());
-                offset += writeRecord(nextSSTable, offset, entry.value());
+                Entry<MemorySegment> entry = valueLogWriter.write(iterator.next());
+                writer.add(entry);
+                if (firstKey == null) {
+                    firstKey = entry.key();
+                }
 
-                index++;
+                addNewPrefixes(prefixFilter, previousKey, entry.key());
+                keyFilter.add(entry.key(), entry.key().byteSize());
+                previousKey = entry.key();
+            }
+            long footerStart = writer.finish();
+            fileSize = footerStart + footerSize;
+
+            prefixFilter.writeTo(nextSSTable, footerStart);
+            keyFilter.writeTo(nextSSTable, footerStart + prefixFilterSize);
+            long lastKeyStart = footerStart + prefixFilterSize + keyFilterSize;
+            if (previousKey != null) {
+                writeRecord(nextSSTable, lastKeyStart, previousKey);
             }
+            if (!rangeTombstones.isEmpty()) {
+                writeRangeTombstones(nextSSTable, lastKeyStart + lastKeySize, rangeTombstones);
+            }
+            MemoryAccess.setLongAtOffset(nextSSTable, footerStart + footerSize - Long.BYTES, footerStart);
 
-            MemoryAccess.setLongAtOffset(nextSSTable, 0, VERSION);
+            MemoryAccess.setLongAtOffset(nextSSTable, 0, SSTableFormats.LATEST_VERSION);
             MemoryAccess.setLongAtOffset(nextSSTable, 8, entriesCount);
-            MemoryAccess.setLongAtOffset(nextSSTable, 16, hasTombstone ? 1 : 0);
-
+            MemoryAccess.setLongAtOffset(nextSSTable, 16, FLAG_PREFIX_FILTER
+                    | FLAG_KEY_FILTER
+                    | FLAG_SHARED_KEY_PREFIXES
+                    | FLAG_CHECKSUMS
+                    | (previousKey == null ? 0 : FLAG_LAST_KEY)
+                    | (hasTombstone ? FLAG_TOMBSTONES : 0)
+                    | (hasOperand ? FLAG_OPERANDS : 0)
+                    | (rangeTombstones.isEmpty() ? 0 : FLAG_RANGE_TOMBSTONES)
+                    | (compressed ? FLAG_COMPRESSED_BLOCKS : 0)
+                    | (eytzingerIndex ? FLAG_EYTZINGER_INDEX : 0)
+                    | (hasValuePointer ? FLAG_VALUE_LOG : 0));
+            BlockSSTable.writeChecksums(nextSSTable, fileSize);
+
+            valueLogWriter.finish();
             nextSSTable.force();
+            lastKey = previousKey;
+        }
+        if (Files.size(sstableTmpPath) != fileSize) {
+            try (FileChannel channel = FileChannel.open(sstableTmpPath, StandardOpenOption.WRITE)) {
+                channel.truncate(fileSize);
+            }
         }
 
         Files.move(sstableTmpPath, sstablePath, StandardCopyOption.ATOMIC_MOVE);
+        return new MemorySegment[]{firstKey, lastKey};
     }
 
-    private static long getSize(Entry<MemorySegment> entry) {
-        if (entry.value() == null) {
-            return Long.BYTES + entry.key().byteSize() + Long.BYTES;
-        } else {
-            return Long.BYTES + entry.value().byteSize() + entry.key().byteSize() + Long.BYTES;
+    // keys come sorted, so every prefix is counted once: when it differs from the previous key's one
+    private static long newPrefixesCount(MemorySegment previousKey, MemorySegment key) {
+        long mismatch = prefixMismatch(previousKey, key);
+        long count = 0;
+        for (long length : PREFIX_FILTER_LENGTHS) {
+            if (isNewPrefix(key, mismatch, length)) {
+                count++;
+            }
         }
+        return count;
+    }
+
+    private static void addNewPrefixes(BloomFilter.Builder prefixFilter, MemorySegment previousKey, MemorySegment key) {
+        long mismatch = prefixMismatch(previousKey, key);
+        for (long length : PREFIX_FILTER_LENGTHS) {
+            if (isNewPrefix(key, mismatch, length)) {
+                prefixFilter.add(key, length);
+            }
+        }
+    }
+
+    // compared once for all prefix lengths, a shorter previous key mismatches at its end
+    private static long prefixMismatch(MemorySegment previousKey, MemorySegment key) {
+        return previousKey == null ? 0 : previousKey.mismatch(key);
+    }
+
+    private static boolean isNewPrefix(MemorySegment key, long mismatch, long length) {
+        return key.byteSize() >= length && mismatch != -1 && mismatch < length;
+    }
+
+    private static long getSize(Entry<MemorySegment> entry) {
+        return Long.BYTES + entry.key().byteSize() + getValueSize(entry);
+    }
+
+    // (valueSize/value) part of the record
+    private static long getValueSize(Entry<MemorySegment> entry) {
+        return entry.value() == null ? Long.BYTES : Long.BYTES + entry.value().byteSize();
     }
 
+    // the sparse index adds next to nothing per entry
     public static long getSizeOnDisk(Entry<MemorySegment> entry) {
-        return getSize(entry) + INDEX_RECORD_SIZE;
+        return getSize(entry);
     }
 
-    private static long writeRecord(MemorySegment nextSSTable, long offset, MemorySegment record) {
+    static long writeEntry(MemorySegment nextSSTable, long offset, Entry<MemorySegment> entry) {
+        long size = writeRecord(nextSSTable, offset, entry.key());
+        return size + writeValue(nextSSTable, offset + size, entry);
+    }
+
+    private static long writeValue(MemorySegment nextSSTable, long offset, Entry<MemorySegment> entry) {
+        if (entry instanceof OperandEntry) {
+            return writeOperand(nextSSTable, offset, entry.value());
+        }
+        return writeRecord(nextSSTable, offset, entry.value());
+    }
+
+    static long writeRecord(MemorySegment nextSSTable, long offset, MemorySegment record) {
         if (record == null) {
             MemoryAccess.setLongAtOffset(nextSSTable, offset, -1);
             return Long.BYTES;
@@ -156,6 +451,25 @@ class Storage implements Closeable {
         return Long.BYTES + recordSize;
     }
 
+    // the block is followed by its start offset, right before footerStart
+    private static void writeRangeTombstones(MemorySegment nextSSTable, long start, RangeTombstones rangeTombstones) {
+        long offset = start;
+        MemoryAccess.setLongAtOffset(nextSSTable, offset, rangeTombstones.size());
+        offset += Long.BYTES;
+        for (int i = 0; i < rangeTombstones.size(); i++) {
+            offset += writeRecord(nextSSTable, offset, rangeTombstones.from(i));
+            offset += writeRecord(nextSSTable, offset, rangeTombstones.to(i));
+        }
+        MemoryAccess.setLongAtOffset(nextSSTable, offset, start);
+    }
+
+    private static long writeOperand(MemorySegment nextSSTable, long offset, MemorySegment operand) {
+        long operandSize = operand.byteSize();
+        MemoryAccess.setLongAtOffset(nextSSTable, offset, OPERAND_SIZE_BASE - operandSize);
+        nextSSTable.asSlice(offset + Long.BYTES, operandSize).copyFrom(operand);
+        return Long.BYTES + operandSize;
+    }
+
     @SuppressWarnings("DuplicateThrows")
     private static MemorySegment mapForRead(ResourceScope scope, Path file) throws NoSuchFileException, IOException {
         long size = Files.size(file);
@@ -163,33 +477,120 @@ class Storage implements Closeable {
         return MemorySegment.mapFile(file, 0, size, FileChannel.MapMode.READ_ONLY, scope);
     }
 
-    public static void compact(Config config, Data data) throws IOException {
-        Path compactedFile = config.basePath().resolve(COMPACTED_FILE);
-        save(data, compactedFile);
-        finishCompact(config, compactedFile);
-    }
+    // all sstables are compacted, so range tombstones have nothing older to remove and are dropped,
+    // values stay in value logs of the storage unless they are mostly garbage
+    // the compacted sstable replaces all the others in a single manifest edit, so a crash leaves either of them
+    public static void compact(Config config, Storage storage, Data data) throws IOException {
+        Path basePath = config.basePath();
+        long id = storage.manifest.nextId();
+        ValueLogs.Writer valueLogWriter = new ValueLogs.Writer(storage.valueLogs, config.valueLogThresholdBytes());
+        MemorySegment[] keyRange = save(data, RangeTombstones.EMPTY, file(basePath, id), config, valueLogWriter);
 
-    private static void finishCompact(Config config, Path compactedFile) throws IOException {
-        for (int i = 0; ; i++) {
-            Path nextFile = config.basePath().resolve(FILE_NAME + i + FILE_EXT);
-            if (!Files.deleteIfExists(nextFile)) {
-                break;
-            }
+        List<Long> compactedIds = new ArrayList<>();
+        for (Manifest.SSTable sstable : storage.manifest.sstables()) {
+            compactedIds.add(sstable.id());
         }
+        Manifest.SSTable sstable = new Manifest.SSTable(id, Manifest.COMPACTED_LEVEL, keyRange[0], keyRange[1]);
+        storage.manifest.apply(List.of(sstable), compactedIds);
 
-        Files.move(compactedFile, config.basePath().resolve(FILE_NAME + 0 + FILE_EXT), StandardCopyOption.ATOMIC_MOVE);
+        for (long compactedId : compactedIds) {
+            Files.deleteIfExists(file(basePath, compactedId));
+        }
+        ValueLogs.deleteUnreferenced(basePath, valueLogWriter.referencedIds());
     }
 
     // supposed to have fresh files first
 
     private final ResourceScope scope;
+    private final Manifest manifest;
     private final ArrayList<MemorySegment> sstables;
+    private final ValueLogs valueLogs;
+    // range tombstones of every sstable and the union of ones of newer sstables
+    private final ArrayList<RangeTombstones> rangeTombstones;
+    private final ArrayList<RangeTombstones> removedByNewer;
+    // null for sstables written without a key filter
+    private final ArrayList<MemorySegment> keyFilters;
+    // key range of every sstable from the manifest, null for ones without entries
+    private final ArrayList<MemorySegment> firstKeys;
+    private final ArrayList<MemorySegment> lastKeys;
     private final boolean hasTombstones;
-
-    private Storage(ResourceScope scope, ArrayList<MemorySegment> sstables, boolean hasTombstones) {
+    private final boolean hasOperands;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private Storage(
+            ResourceScope scope,
+            Manifest manifest,
+            ArrayList<MemorySegment> sstables,
+            ValueLogs valueLogs,
+            ArrayList<RangeTombstones> rangeTombstones,
+            boolean hasTombstones,
+            boolean hasOperands) {
         this.scope = scope;
+        this.manifest = manifest;
         this.sstables = sstables;
+        this.valueLogs = valueLogs;
+        this.rangeTombstones = rangeTombstones;
+        this.removedByNewer = new ArrayList<>(Collections.nCopies(sstables.size(), RangeTombstones.EMPTY));
+        RangeTombstones removed = RangeTombstones.EMPTY;
+        for (int i = sstables.size() - 1; i >= 0; i--) {
+            removedByNewer.set(i, removed);
+            removed = removed.union(rangeTombstones.get(i));
+        }
+        this.keyFilters = new ArrayList<>(sstables.size());
+        this.firstKeys = new ArrayList<>(sstables.size());
+        this.lastKeys = new ArrayList<>(sstables.size());
+        for (MemorySegment sstable : sstables) {
+            keyFilters.add(keyFilter(sstable));
+        }
+        for (Manifest.SSTable info : manifest.sstables()) {
+            firstKeys.add(info.firstKey());
+            lastKeys.add(info.lastKey());
+        }
         this.hasTombstones = hasTombstones;
+        this.hasOperands = hasOperands;
+    }
+
+    private static MemorySegment keyFilter(MemorySegment sstable) {
+        if ((MemoryAccess.getLongAtOffset(sstable, 16) & FLAG_KEY_FILTER) == 0) {
+            return null;
+        }
+        long footerStart = MemoryAccess.getLongAtOffset(sstable, sstable.byteSize() - Long.BYTES);
+        MemorySegment prefixFilter = BloomFilter.at(sstable, footerStart);
+        return BloomFilter.at(sstable, footerStart + prefixFilter.byteSize());
+    }
+
+    // files written before FLAG_LAST_KEY read their last entry
+    private static MemorySegment lastKey(MemorySegment sstable, ValueLogs valueLogs) {
+        long flags = MemoryAccess.getLongAtOffset(sstable, 16);
+        if ((flags & FLAG_LAST_KEY) != 0) {
+            long footerStart = MemoryAccess.getLongAtOffset(sstable, sstable.byteSize() - Long.BYTES);
+            long keyFilterStart = footerStart + BloomFilter.at(sstable, footerStart).byteSize();
+            return keyAt(sstable, keyFilterStart + BloomFilter.at(sstable, keyFilterStart).byteSize());
+        }
+        return SSTableFormats.of(sstable).entryAt(sstable, recordsCount(sstable) - 1, valueLogs).key();
+    }
+
+    // false means there is no such key in the sstable for sure
+    private boolean mightContainKey(int index, MemorySegment key) {
+        MemorySegment firstKey = firstKeys.get(index);
+        if (firstKey == null
+                || MemorySegmentComparator.INSTANCE.compare(key, firstKey) < 0
+                || MemorySegmentComparator.INSTANCE.compare(key, lastKeys.get(index)) > 0) {
+            return false;
+        }
+        MemorySegment keyFilter = keyFilters.get(index);
+        return keyFilter == null || BloomFilter.mightContain(keyFilter, key, key.byteSize());
+    }
+
+    // false means there are no keys of [keyFrom; keyTo) in the sstable for sure, null bounds are open
+    private boolean mightContainRange(int index, MemorySegment keyFrom, MemorySegment keyTo) {
+        MemorySegment firstKey = firstKeys.get(index);
+        if (firstKey == null) {
+            return false;
+        }
+        return (keyTo == null || MemorySegmentComparator.INSTANCE.compare(firstKey, keyTo) < 0)
+                && (keyFrom == null || MemorySegmentComparator.INSTANCE.compare(lastKeys.get(index), keyFrom) >= 0);
     }
 
     private long greaterOrEqualEntryIndex(MemorySegment sstable, MemorySegment key) {
@@ -200,100 +601,179 @@ class Storage implements Closeable {
         return index;
     }
 
-    // file structure:
-    // (fileVersion)(entryCount)((entryPosition)...)|((keySize/key/valueSize/value)...)
+    // the footer of all formats (see BlockSSTable for the current one):
+    // |(prefixFilter)[(keyFilter)][(lastKey)][(rangeTombstones)(rangeTombstonesStart)](footerStart)
+    // filters know their size, so the footer is read forward from footerStart
     private long entryIndex(MemorySegment sstable, MemorySegment key) {
-        long fileVersion = MemoryAccess.getLongAtOffset(sstable, 0);
-        if (fileVersion != 0) {
-            throw new IllegalStateException("Unknown file version: " + fileVersion);
-        }
-        long recordsCount = MemoryAccess.getLongAtOffset(sstable, 8);
         if (key == null) {
             // fixme
-            return recordsCount;
+            return recordsCount(sstable);
         }
+        return SSTableFormats.of(sstable).entryIndex(sstable, key);
+    }
 
-        long left = 0;
-        long right = recordsCount - 1;
-
-        while (left <= right) {
-            long mid = (left + right) >>> 1;
+    private static long recordsCount(MemorySegment sstable) {
+        return MemoryAccess.getLongAtOffset(sstable, 8);
+    }
 
-            long keyPos = MemoryAccess.getLongAtOffset(sstable, INDEX_HEADER_SIZE + mid * INDEX_RECORD_SIZE);
-            long keySize = MemoryAccess.getLongAtOffset(sstable, keyPos);
+    private Entry<MemorySegment> entryAt(MemorySegment sstable, long keyIndex) {
+        try {
+            return SSTableFormats.of(sstable).entryAt(sstable, keyIndex, valueLogs);
+        } catch (IllegalStateException e) {
+            throw checkForClose(e);
+        }
+    }
 
-            MemorySegment keyForCheck = sstable.asSlice(keyPos + Long.BYTES, keySize);
-            int comparedResult = MemorySegmentComparator.INSTANCE.compare(key, keyForCheck);
-            if (comparedResult > 0) {
-                left = mid + 1;
-            } else if (comparedResult < 0) {
-                right = mid - 1;
-            } else {
-                return mid;
-            }
+    // (valueSize/value) part of the record at the offset
+    static Entry<MemorySegment> readEntry(MemorySegment key, MemorySegment data, long valueOffset) {
+        long valueSize = MemoryAccess.getLongAtOffset(data, valueOffset);
+        if (valueSize <= OPERAND_SIZE_BASE) {
+            return new OperandEntry(key, data.asSlice(valueOffset + Long.BYTES, OPERAND_SIZE_BASE - valueSize));
         }
+        return new BaseEntry<>(
+                key,
+                valueSize == -1 ? null : data.asSlice(valueOffset + Long.BYTES, valueSize)
+        );
+    }
 
-        return ~left;
+    static MemorySegment keyAt(MemorySegment data, long offset) {
+        return data.asSlice(offset + Long.BYTES, MemoryAccess.getLongAtOffset(data, offset));
     }
 
-    private Entry<MemorySegment> entryAt(MemorySegment sstable, long keyIndex) {
+    static long valueRecordSize(MemorySegment data, long valueOffset) {
+        long valueSize = MemoryAccess.getLongAtOffset(data, valueOffset);
+        if (valueSize <= OPERAND_SIZE_BASE) {
+            valueSize = OPERAND_SIZE_BASE - valueSize;
+        }
+        return Long.BYTES + Math.max(valueSize, 0);
+    }
+
+    public Entry<MemorySegment> get(MemorySegment key) {
         try {
-            long offset = MemoryAccess.getLongAtOffset(sstable, INDEX_HEADER_SIZE + keyIndex * INDEX_RECORD_SIZE);
-            long keySize = MemoryAccess.getLongAtOffset(sstable, offset);
-            long valueOffset = offset + Long.BYTES + keySize;
-            long valueSize = MemoryAccess.getLongAtOffset(sstable, valueOffset);
-            return new BaseEntry<>(
-                    sstable.asSlice(offset + Long.BYTES, keySize),
-                    valueSize == -1 ? null : sstable.asSlice(valueOffset + Long.BYTES, valueSize)
-            );
+            for (int i = sstables.size() - 1; i >= 0; i--) {
+                Entry<MemorySegment> entry = mightContainKey(i, key) ? entry(sstables.get(i), key) : null;
+                if (entry != null) {
+                    return entry;
+                }
+                if (rangeTombstones.get(i).covers(key)) {
+                    return new BaseEntry<>(key, null);
+                }
+            }
+            return null;
         } catch (IllegalStateException e) {
             throw checkForClose(e);
         }
     }
 
-    public Entry<MemorySegment> get(MemorySegment key) {
+    // keys are sorted, only absent (null) results are looked up
+    public void getAll(MemorySegment[] keys, Entry<MemorySegment>[] results) {
         try {
             for (int i = sstables.size() - 1; i >= 0; i--) {
                 MemorySegment sstable = sstables.get(i);
-                long keyFromPos = entryIndex(sstable, key);
-                if (keyFromPos >= 0) {
-                    return entryAt(sstable, keyFromPos);
+                int index = i;
+                SSTableFormats.of(sstable)
+                        .getAll(sstable, keys, results, valueLogs, key -> mightContainKey(index, key));
+                RangeTombstones removed = rangeTombstones.get(i);
+                for (int k = 0; k < keys.length && !removed.isEmpty(); k++) {
+                    if (results[k] == null && removed.covers(keys[k])) {
+                        results[k] = new BaseEntry<>(keys[k], null);
+                    }
                 }
             }
-            return null;
         } catch (IllegalStateException e) {
             throw checkForClose(e);
         }
     }
 
+    // the entry with the key in the sstable or null
+    private Entry<MemorySegment> entry(MemorySegment sstable, MemorySegment key) {
+        return SSTableFormats.of(sstable).get(sstable, key, valueLogs);
+    }
+
     private Iterator<Entry<MemorySegment>> iterate(MemorySegment sstable, MemorySegment keyFrom, MemorySegment keyTo) {
         long keyFromPos = greaterOrEqualEntryIndex(sstable, keyFrom);
         long keyToPos = greaterOrEqualEntryIndex(sstable, keyTo);
+        return SSTableFormats.of(sstable).iterate(sstable, keyFromPos, keyToPos, valueLogs);
+    }
 
-        return new Iterator<>() {
-            long pos = keyFromPos;
+    private Iterator<Entry<MemorySegment>> iterateDescending(
+            MemorySegment sstable,
+            MemorySegment keyFrom,
+            MemorySegment keyTo) {
+        long keyFromPos = greaterOrEqualEntryIndex(sstable, keyFrom);
+        long keyToPos = greaterOrEqualEntryIndex(sstable, keyTo);
+        return SSTableFormats.of(sstable).iterateDescending(sstable, keyFromPos, keyToPos, valueLogs);
+    }
+
+    // last is newer
+    // it is ok to mutate list after
+    // entries removed by ranges of newer sstables or by the given ones are skipped,
+    // as well as sstables with key ranges not intersecting the requested one
+    public ArrayList<Iterator<Entry<MemorySegment>>> iterate(
+            MemorySegment keyFrom,
+            MemorySegment keyTo,
+            RangeTombstones removed) {
+        try {
+            ArrayList<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(sstables.size());
+            for (int i = 0; i < sstables.size(); i++) {
+                if (mightContainRange(i, keyFrom, keyTo)) {
+                    iterators.add(removed(i, removed).filter(iterate(sstables.get(i), keyFrom, keyTo)));
+                }
+            }
+            return iterators;
+        } catch (IllegalStateException e) {
+            throw checkForClose(e);
+        }
+    }
 
-            @Override
-            public boolean hasNext() {
-                return pos < keyToPos;
+    // skips sstables which have no keys starting with prefix for sure
+    public ArrayList<Iterator<Entry<MemorySegment>>> iteratePrefix(
+            MemorySegment prefix,
+            MemorySegment keyTo,
+            RangeTombstones removed) {
+        try {
+            ArrayList<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(sstables.size());
+            for (int i = 0; i < sstables.size(); i++) {
+                MemorySegment sstable = sstables.get(i);
+                if (mightContainRange(i, prefix, keyTo) && mightContainPrefix(sstable, prefix)) {
+                    iterators.add(removed(i, removed).filter(iterate(sstable, prefix, keyTo)));
+                }
             }
+            return iterators;
+        } catch (IllegalStateException e) {
+            throw checkForClose(e);
+        }
+    }
 
-            @Override
-            public Entry<MemorySegment> next() {
-                Entry<MemorySegment> entry = entryAt(sstable, pos);
-                pos++;
-                return entry;
+    private static boolean mightContainPrefix(MemorySegment sstable, MemorySegment prefix) {
+        if ((MemoryAccess.getLongAtOffset(sstable, 16) & FLAG_PREFIX_FILTER) == 0) {
+            return true;
+        }
+        // the longest filtered prefix which is not longer than the requested one
+        long length = -1;
+        for (long filteredLength : PREFIX_FILTER_LENGTHS) {
+            if (filteredLength <= prefix.byteSize()) {
+                length = filteredLength;
             }
-        };
+        }
+        if (length == -1) {
+            return true;
+        }
+        long footerStart = MemoryAccess.getLongAtOffset(sstable, sstable.byteSize() - Long.BYTES);
+        return BloomFilter.mightContain(BloomFilter.at(sstable, footerStart), prefix, length);
     }
 
-    // last is newer
-    // it is ok to mutate list after
-    public ArrayList<Iterator<Entry<MemorySegment>>> iterate(MemorySegment keyFrom, MemorySegment keyTo) {
+    // same as iterate, but every iterator goes from keyTo (exclusive) down to keyFrom
+    public ArrayList<Iterator<Entry<MemorySegment>>> iterateDescending(
+            MemorySegment keyFrom,
+            MemorySegment keyTo,
+            RangeTombstones removed) {
         try {
             ArrayList<Iterator<Entry<MemorySegment>>> iterators = new ArrayList<>(sstables.size());
-            for (MemorySegment sstable : sstables) {
-                iterators.add(iterate(sstable, keyFrom, keyTo));
+            for (int i = 0; i < sstables.size(); i++) {
+                if (mightContainRange(i, keyFrom, keyTo)) {
+                    iterators.add(removed(i, removed).filter(iterateDescending(sstables.get(i), keyFrom, keyTo)));
+                }
             }
             return iterators;
         } catch (IllegalStateException e) {
@@ -301,41 +781,161 @@ class Storage implements Closeable {
         }
     }
 
+    // sums positions found by the index, entries shadowed in newer sstables are counted as well
+    public Estimate estimate(MemorySegment keyFrom, MemorySegment keyTo) {
+        try {
+            long count = 0;
+            long byteSize = 0;
+            for (MemorySegment sstable : sstables) {
+                long keyFromPos = greaterOrEqualEntryIndex(sstable, keyFrom);
+                long keyToPos = greaterOrEqualEntryIndex(sstable, keyTo);
+                count += keyToPos - keyFromPos;
+                byteSize += SSTableFormats.of(sstable).byteSize(sstable, keyFromPos, keyToPos);
+            }
+            return new Estimate(count, byteSize);
+        } catch (IllegalStateException e) {
+            throw checkForClose(e);
+        }
+    }
+
+    // the middle key of [keyFrom; keyTo) in the largest sstable, null if the range is too small to split
+    public MemorySegment splitKey(MemorySegment keyFrom, MemorySegment keyTo) {
+        try {
+            MemorySegment sstable = largestSSTable();
+            if (sstable == null) {
+                return null;
+            }
+            long keyFromPos = greaterOrEqualEntryIndex(sstable, keyFrom);
+            long keyToPos = greaterOrEqualEntryIndex(sstable, keyTo);
+            if (keyToPos - keyFromPos < 2) {
+                return null;
+            }
+            return entryAt(sstable, (keyFromPos + keyToPos) >>> 1).key();
+        } catch (IllegalStateException e) {
+            throw checkForClose(e);
+        }
+    }
+
+    // records of the largest sstable in [keyFrom; keyTo), two binary searches
+    public long splitRecordsCount(MemorySegment keyFrom, MemorySegment keyTo) {
+        try {
+            MemorySegment sstable = largestSSTable();
+            if (sstable == null) {
+                return 0;
+            }
+            return greaterOrEqualEntryIndex(sstable, keyTo) - greaterOrEqualEntryIndex(sstable, keyFrom);
+        } catch (IllegalStateException e) {
+            throw checkForClose(e);
+        }
+    }
+
+    private MemorySegment largestSSTable() {
+        MemorySegment largest = null;
+        for (MemorySegment sstable : sstables) {
+            if (largest == null || recordsCount(sstable) > recordsCount(largest)) {
+                largest = sstable;
+            }
+        }
+        return largest;
+    }
+
+    // verifies every sstable as its load does and its blocks against their checksums reading at most bytesPerSecond,
+    // blocks of files written without checksums are skipped
+    public void scrub(long bytesPerSecond) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long verifiedBytes = 0;
+        try {
+            for (int i = 0; i < sstables.size(); i++) {
+                MemorySegment sstable = sstables.get(i);
+                verify(sstable, Path.of(FILE_NAME + manifest.sstables().get(i).id() + FILE_EXT));
+                if ((MemoryAccess.getLongAtOffset(sstable, 16) & FLAG_CHECKSUMS) == 0) {
+                    continue;
+                }
+                for (long block = 0; block < BlockSSTable.blockCount(sstable); block++) {
+                    if (!BlockSSTable.isBlockValid(sstable, block)) {
+                        throw new CorruptedSSTableException(
+                                FILE_NAME + manifest.sstables().get(i).id() + FILE_EXT
+                                        + ": block " + block + " checksum mismatch");
+                    }
+                    verifiedBytes += BlockSSTable.blockByteSize(sstable, block);
+                    long aheadNanos = scrubPauseNanos(verifiedBytes, bytesPerSecond, System.nanoTime() - start);
+                    if (aheadNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                    }
+                }
+            }
+        } catch (IllegalStateException e) {
+            throw checkForClose(e);
+        }
+    }
+
+    // how far verification of the bytes is ahead of the rate, not positive if it is behind
+    static long scrubPauseNanos(long verifiedBytes, long bytesPerSecond, long elapsedNanos) {
+        return (long) (verifiedBytes * 1e9 / bytesPerSecond) - elapsedNanos;
+    }
+
+    private RangeTombstones removed(int index, RangeTombstones removedByMemory) {
+        return removedByNewer.get(index).union(removedByMemory);
+    }
+
     private RuntimeException checkForClose(IllegalStateException e) {
-        if (isClosed()) {
+        if (!scope.isAlive()) {
             throw new StorageClosedException(e);
         } else {
             throw e;
         }
     }
 
-    @Override
-    public void close() throws IOException {
-        while (scope.isAlive()) {
-            try {
-                scope.close();
-                return;
-            } catch (IllegalStateException ignored) {
+    // pins mapped sstables until release(), fails if storage is already unmapped
+    public boolean acquire() {
+        while (true) {
+            int current = refs.get();
+            if (current == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
             }
         }
     }
 
-    public void maybeClose() {
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            scope.close();
+        }
+    }
 
+    // sstables stay mapped until the last reader releases them
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
     }
 
     public boolean isClosed() {
-        return !scope.isAlive();
+        return closed.get();
     }
 
+    // a single sstable of an older version is rewritten by compaction to upgrade it
     public boolean isCompacted() {
         if (sstables.isEmpty()) {
             return true;
         }
-        if (sstables.size() > 1) {
+        if (sstables.size() > 1 || SSTableFormats.version(sstables.get(0)) != SSTableFormats.LATEST_VERSION) {
             return false;
         }
-        return !hasTombstones;
+        return !hasTombstones && !hasOperands;
+    }
+
+    // operands of any sstable, they can't be read without the merge operator
+    public boolean hasOperands() {
+        for (MemorySegment sstable : sstables) {
+            if ((MemoryAccess.getLongAtOffset(sstable, 16) & FLAG_OPERANDS) != 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public interface Data {
@@ -0,0 +1,8 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Entry;
+
+// value written to the value log with the id at the offset, the sstable keeps a pointer to it
+record ValueLogEntry(MemorySegment key, MemorySegment value, long logId, long offset) implements Entry<MemorySegment> {
+}
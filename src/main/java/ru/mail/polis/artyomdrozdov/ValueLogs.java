@@ -0,0 +1,190 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// values of at least Config.valueLogThresholdBytes are appended to value log files instead of sstables,
+// sstables keep pointers to them, so compaction moves pointers and leaves the values where they are
+// file structure: ((value)...)
+// every sstable write appends new values to a new log, a compaction also moves live values of logs
+// which are mostly garbage there, logs not referenced by the compacted sstable are deleted after it
+final class ValueLogs {
+
+    private static final String FILE_NAME = "values";
+    private static final String FILE_EXT = ".dat";
+    private static final Pattern FILE_PATTERN = Pattern.compile(FILE_NAME + "(\\d+)" + Pattern.quote(FILE_EXT));
+    // a log is rewritten by compaction when less than a half of it is live
+    private static final double MIN_LIVE_RATIO = 0.5;
+
+    // sorted by id
+    private final long[] ids;
+    private final MemorySegment[] logs;
+
+    private ValueLogs(long[] ids, MemorySegment[] logs) {
+        this.ids = ids;
+        this.logs = logs;
+    }
+
+    static ValueLogs load(Path basePath, ResourceScope scope) throws IOException {
+        long[] ids = logIds(basePath);
+        MemorySegment[] logs = new MemorySegment[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            Path file = file(basePath, ids[i]);
+            logs[i] = MemorySegment.mapFile(file, 0, Files.size(file), FileChannel.MapMode.READ_ONLY, scope);
+        }
+        return new ValueLogs(ids, logs);
+    }
+
+    private static long[] logIds(Path basePath) throws IOException {
+        try (Stream<Path> files = Files.list(basePath)) {
+            return files.map(file -> FILE_PATTERN.matcher(file.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .mapToLong(matcher -> Long.parseLong(matcher.group(1)))
+                    .sorted()
+                    .toArray();
+        }
+    }
+
+    private static Path file(Path basePath, long id) {
+        return basePath.resolve(FILE_NAME + id + FILE_EXT);
+    }
+
+    // logs written before a crash between a compaction and this call are deleted by the next compaction
+    static void deleteUnreferenced(Path basePath, Set<Long> referencedIds) throws IOException {
+        for (long id : logIds(basePath)) {
+            if (!referencedIds.contains(id)) {
+                Files.deleteIfExists(file(basePath, id));
+            }
+        }
+    }
+
+    MemorySegment value(long id, long offset, long size) {
+        int log = Arrays.binarySearch(ids, id);
+        if (log < 0) {
+            throw new IllegalStateException("Missing value log " + id);
+        }
+        return logs[log].asSlice(offset, size);
+    }
+
+    // index of the mapped log containing the value, -1 if the value is not in a log
+    private int logOf(MemorySegment value) {
+        if (!value.isNative()) {
+            return -1;
+        }
+        long address = value.address().toRawLongValue();
+        for (int i = 0; i < logs.length; i++) {
+            long start = logs[i].address().toRawLongValue();
+            if (address >= start && address + value.byteSize() <= start + logs[i].byteSize()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private long offsetIn(int log, MemorySegment value) {
+        return value.address().toRawLongValue() - logs[log].address().toRawLongValue();
+    }
+
+    private long nextId() {
+        return ids.length == 0 ? 0 : ids[ids.length - 1] + 1;
+    }
+
+    // decides where values of an sstable being written go, both passes of Storage.save see the same entries:
+    // add() counts them in the first one and write() returns them with their pointers in the second one
+    static final class Writer {
+        private final ValueLogs valueLogs;
+        private final long threshold;
+        private final long[] liveBytes;
+        private final boolean[] rewritten;
+        private final Set<Long> referencedIds = new HashSet<>();
+        private long newBytes;
+        // null if there are no new values
+        private MemorySegment newLog;
+        private long newLogOffset;
+
+        Writer(ValueLogs valueLogs, long threshold) {
+            this.valueLogs = valueLogs;
+            this.threshold = threshold;
+            this.liveBytes = new long[valueLogs.logs.length];
+            this.rewritten = new boolean[valueLogs.logs.length];
+        }
+
+        private boolean isSeparated(Entry<MemorySegment> entry) {
+            return entry.value() != null && !(entry instanceof OperandEntry) && entry.value().byteSize() >= threshold;
+        }
+
+        // the entry as it is put to the sstable, pointers are not known yet
+        Entry<MemorySegment> add(Entry<MemorySegment> entry) {
+            if (!isSeparated(entry)) {
+                return entry;
+            }
+            int log = valueLogs.logOf(entry.value());
+            if (log == -1) {
+                newBytes += entry.value().byteSize();
+            } else {
+                liveBytes[log] += entry.value().byteSize();
+            }
+            return new ValueLogEntry(entry.key(), entry.value(), -1, -1);
+        }
+
+        // has to be called between the passes, the new log is mapped to the scope
+        void open(Path basePath, ResourceScope scope) throws IOException {
+            for (int i = 0; i < liveBytes.length; i++) {
+                if (liveBytes[i] > 0 && liveBytes[i] < valueLogs.logs[i].byteSize() * MIN_LIVE_RATIO) {
+                    rewritten[i] = true;
+                    newBytes += liveBytes[i];
+                }
+            }
+            if (newBytes == 0) {
+                return;
+            }
+            Path file = file(basePath, valueLogs.nextId());
+            Files.deleteIfExists(file);
+            Files.createFile(file);
+            newLog = MemorySegment.mapFile(file, 0, newBytes, FileChannel.MapMode.READ_WRITE, scope);
+        }
+
+        // the entry with the pointer to its value, new values are appended to the new log
+        Entry<MemorySegment> write(Entry<MemorySegment> entry) {
+            if (!isSeparated(entry)) {
+                return entry;
+            }
+            int log = valueLogs.logOf(entry.value());
+            if (log != -1 && !rewritten[log]) {
+                referencedIds.add(valueLogs.ids[log]);
+                long offset = valueLogs.offsetIn(log, entry.value());
+                return new ValueLogEntry(entry.key(), entry.value(), valueLogs.ids[log], offset);
+            }
+            long offset = newLogOffset;
+            long id = valueLogs.nextId();
+            newLog.asSlice(offset, entry.value().byteSize()).copyFrom(entry.value());
+            newLogOffset += entry.value().byteSize();
+            referencedIds.add(id);
+            return new ValueLogEntry(entry.key(), entry.value(), id, offset);
+        }
+
+        // the new log has to be durable before the sstable pointing to it
+        void finish() {
+            if (newLog != null) {
+                newLog.force();
+            }
+        }
+
+        // ids of logs the sstable points to
+        Set<Long> referencedIds() {
+            return referencedIds;
+        }
+    }
+}
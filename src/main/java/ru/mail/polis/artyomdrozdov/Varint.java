@@ -0,0 +1,48 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+// non-negative values are stored by 7 bits per byte from the lowest ones,
+// the high bit of a byte is set if more bytes follow
+final class Varint {
+
+    private static final int DATA_BITS = 7;
+    private static final int MORE_BIT = 0x80;
+
+    private Varint() {
+    }
+
+    static int size(long value) {
+        int size = 1;
+        for (long rest = value >>> DATA_BITS; rest != 0; rest >>>= DATA_BITS) {
+            size++;
+        }
+        return size;
+    }
+
+    // returns the number of written bytes
+    static int write(MemorySegment segment, long offset, long value) {
+        long position = offset;
+        long rest = value;
+        while ((rest & ~0x7FL) != 0) {
+            MemoryAccess.setByteAtOffset(segment, position++, (byte) (rest | MORE_BIT));
+            rest >>>= DATA_BITS;
+        }
+        MemoryAccess.setByteAtOffset(segment, position++, (byte) rest);
+        return (int) (position - offset);
+    }
+
+    // the encoded size is size(value)
+    static long read(MemorySegment segment, long offset) {
+        long value = 0;
+        long position = offset;
+        for (int shift = 0; ; shift += DATA_BITS) {
+            byte b = MemoryAccess.getByteAtOffset(segment, position++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & MORE_BIT) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@ import ru.mail.polis.stepanponomarev.store.Storage;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Iterator;
 
 public class LSMDao implements Dao<MemorySegment, TimestampEntry> {
@@ -22,12 +23,14 @@ public class LSMDao implements Dao<MemorySegment, TimestampEntry> {
 
     @Override
     public Iterator<TimestampEntry> get(MemorySegment from, MemorySegment to) throws IOException {
-        return new TombstoneSkipIterator<>(storage.get(from, to));
+        final long timestamp = System.currentTimeMillis();
+        return new TombstoneSkipIterator<>(storage.get(from, to), entry -> !entry.isExpired(timestamp));
     }
 
     @Override
     public TimestampEntry get(MemorySegment key) throws IOException {
-        return storage.get(key);
+        final long timestamp = System.currentTimeMillis();
+        return storage.get(key, timestamp);
     }
 
     @Override
@@ -35,6 +38,24 @@ public class LSMDao implements Dao<MemorySegment, TimestampEntry> {
         storage.put(entry);
     }
 
+    /**
+     * Inserts or replaces entry which is treated as removed after ttl.
+     * Expired entries are dropped from disk on compaction, ttl too long to be represented never expires.
+     */
+    public void upsert(TimestampEntry entry, Duration ttl) {
+        if (ttl.isNegative()) {
+            throw new IllegalArgumentException("TTL is negative: " + ttl);
+        }
+
+        long expiresAt;
+        try {
+            expiresAt = Math.addExact(entry.getTimestamp(), ttl.toMillis());
+        } catch (ArithmeticException e) {
+            expiresAt = TimestampEntry.NO_EXPIRATION;
+        }
+        storage.put(new TimestampEntry(entry.key(), entry.value(), entry.getTimestamp(), expiresAt));
+    }
+
     @Override
     public void close() throws IOException {
         flush();
@@ -4,32 +4,48 @@ import jdk.incubator.foreign.MemorySegment;
 import ru.mail.polis.BaseEntry;
 import ru.mail.polis.Entry;
 
-//TODO: Задел на будущее
 public final class TimestampEntry implements Entry<MemorySegment> {
+    public static final long NO_EXPIRATION = Long.MAX_VALUE;
+
     private final Entry<MemorySegment> entry;
     private final long timestamp;
+    private final long expiresAt;
 
     public TimestampEntry(Entry<MemorySegment> entry) {
         this.entry = entry;
         this.timestamp = System.currentTimeMillis();
+        this.expiresAt = NO_EXPIRATION;
     }
 
     public TimestampEntry(MemorySegment key, MemorySegment value, long timestamp) {
+        this(key, value, timestamp, NO_EXPIRATION);
+    }
+
+    public TimestampEntry(MemorySegment key, MemorySegment value, long timestamp, long expiresAt) {
         this.entry = new BaseEntry<>(key, value);
         this.timestamp = timestamp;
+        this.expiresAt = expiresAt;
     }
-    
+
     public long getSizeBytes() {
         final MemorySegment key = entry.key();
         final MemorySegment value = entry.value();
 
-        return key.byteSize() + (value == null ? 0 : value.byteSize()) + Long.BYTES;
+        return key.byteSize() + (value == null ? 0 : value.byteSize()) + Long.BYTES * 2;
     }
 
     public long getTimestamp() {
         return timestamp;
     }
 
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(long timeMs) {
+        return expiresAt <= timeMs;
+    }
+
     @Override
     public MemorySegment key() {
         return entry.key();
@@ -4,13 +4,21 @@ import ru.mail.polis.Entry;
 
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.function.Predicate;
 
 public class TombstoneSkipIterator<T, E extends Entry<T>> implements Iterator<E> {
     private final Iterator<E> delegate;
+    private final Predicate<E> alive;
     private E current;
 
     public TombstoneSkipIterator(Iterator<E> delegate) {
+        this(delegate, entry -> true);
+    }
+
+    // entries rejected by alive are skipped as tombstones
+    public TombstoneSkipIterator(Iterator<E> delegate, Predicate<E> alive) {
         this.delegate = delegate;
+        this.alive = alive;
         this.current = getNext(delegate);
     }
 
@@ -34,7 +42,7 @@ public class TombstoneSkipIterator<T, E extends Entry<T>> implements Iterator<E>
     private E getNext(Iterator<E> iterator) {
         while (iterator.hasNext()) {
             final E entry = iterator.next();
-            if (entry.value() != null) {
+            if (entry.value() != null && alive.test(entry)) {
                 return entry;
             }
         }
@@ -9,10 +9,13 @@ import java.util.NoSuchElementException;
 
 final class MappedIterator implements Iterator<TimestampEntry> {
     private final MemorySegment memorySegment;
+    // records of old files have no expiresAt
+    private final boolean hasExpiration;
     private long position;
 
-    public MappedIterator(MemorySegment segment) {
+    public MappedIterator(MemorySegment segment, boolean hasExpiration) {
         memorySegment = segment;
+        this.hasExpiration = hasExpiration;
         position = 0;
     }
 
@@ -36,16 +39,22 @@ final class MappedIterator implements Iterator<TimestampEntry> {
         final long timestamp = MemoryAccess.getLongAtOffset(memorySegment, position);
         position += Long.BYTES;
 
+        long expiresAt = TimestampEntry.NO_EXPIRATION;
+        if (hasExpiration) {
+            expiresAt = MemoryAccess.getLongAtOffset(memorySegment, position);
+            position += Long.BYTES;
+        }
+
         final long valueSize = MemoryAccess.getLongAtOffset(memorySegment, position);
         position += Long.BYTES;
 
         if (valueSize == SSTable.TOMBSTONE_TAG) {
-            return new TimestampEntry(key, null, timestamp);
+            return new TimestampEntry(key, null, timestamp, expiresAt);
         }
 
         MemorySegment value = memorySegment.asSlice(position, valueSize);
         position += valueSize;
 
-        return new TimestampEntry(key, value, timestamp);
+        return new TimestampEntry(key, value, timestamp, expiresAt);
     }
 }
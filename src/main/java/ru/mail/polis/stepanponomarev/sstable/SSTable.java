@@ -14,8 +14,14 @@ import java.nio.file.Path;
 import java.util.Collections;
 import java.util.Iterator;
 
+// index file: (version)((recordOffset)...)
+// data file: ((keySize/key/timestamp/expiresAt/valueSize/value)...)
+// version 0 files have no version in the index, its first offset is always 0 instead,
+// and their records have no expiresAt, they are rewritten in the current version by compaction
 public final class SSTable implements Closeable {
     public static final long TOMBSTONE_TAG = -1;
+    private static final long VERSION = 1;
+    private static final long NO_EXPIRATION_VERSION = 0;
     private static final String SSTABLE_FILE_NAME = "sstable.data";
     private static final String INDEX_FILE_NAME = "sstable.index";
     
@@ -23,11 +29,18 @@ public final class SSTable implements Closeable {
 
     private final MemorySegment indexMemorySegment;
     private final MemorySegment tableMemorySegment;
-
-    private SSTable(MemorySegment indexMemorySegment, MemorySegment tableMemorySegment, long createdAt) {
+    private final boolean hasExpiration;
+
+    private SSTable(
+            MemorySegment indexMemorySegment,
+            MemorySegment tableMemorySegment,
+            long createdAt,
+            boolean hasExpiration
+    ) {
         this.indexMemorySegment = indexMemorySegment;
         this.tableMemorySegment = tableMemorySegment;
         this.createdTimeMs = createdAt;
+        this.hasExpiration = hasExpiration;
     }
 
     public static SSTable createInstance(
@@ -52,7 +65,7 @@ public final class SSTable implements Closeable {
         final Path indexFile = path.resolve(INDEX_FILE_NAME);
         Files.createFile(indexFile);
 
-        final long indexSizeBytes = (long) Long.BYTES * count;
+        final long indexSizeBytes = (long) Long.BYTES * (count + 1);
         final MemorySegment mappedIndex = MemorySegment.mapFile(
                 indexFile,
                 0,
@@ -61,9 +74,11 @@ public final class SSTable implements Closeable {
                 ResourceScope.newSharedScope()
         );
 
-        flush(data, mappedSsTable, mappedIndex);
+        MemoryAccess.setLongAtOffset(mappedIndex, 0, VERSION);
+        final MemorySegment index = mappedIndex.asSlice(Long.BYTES);
+        flush(data, mappedSsTable, index);
 
-        return new SSTable(mappedIndex.asReadOnly(), mappedSsTable.asReadOnly(), createdAt);
+        return new SSTable(index.asReadOnly(), mappedSsTable.asReadOnly(), createdAt, true);
     }
 
     public static SSTable upInstance(Path path, long createdAt) throws IOException {
@@ -89,7 +104,17 @@ public final class SSTable implements Closeable {
                 ResourceScope.newSharedScope()
         );
 
-        return new SSTable(mappedIndex, mappedSsTable, createdAt);
+        final long version = MemoryAccess.getLongAtOffset(mappedIndex, 0);
+        if (version == NO_EXPIRATION_VERSION) {
+            return new SSTable(mappedIndex, mappedSsTable, createdAt, false);
+        }
+        if (version != VERSION) {
+            mappedIndex.scope().close();
+            mappedSsTable.scope().close();
+            throw new IllegalStateException("Unsupported SSTable version " + version + " in " + path);
+        }
+
+        return new SSTable(mappedIndex.asSlice(Long.BYTES), mappedSsTable, createdAt, true);
     }
 
     private static void flush(Iterator<TimestampEntry> data, MemorySegment sstable, MemorySegment index) {
@@ -117,7 +142,7 @@ public final class SSTable implements Closeable {
         }
 
         if (from == null && to == null) {
-            return new MappedIterator(tableMemorySegment);
+            return new MappedIterator(tableMemorySegment, hasExpiration);
         }
 
         final int max = (int) (indexMemorySegment.byteSize() / Long.BYTES) - 1;
@@ -131,7 +156,7 @@ public final class SSTable implements Closeable {
         final long fromPosition = MemoryAccess.getLongAtIndex(indexMemorySegment, fromIndex);
         final long toPosition = toIndex > max ? size : MemoryAccess.getLongAtIndex(indexMemorySegment, toIndex);
 
-        return new MappedIterator(tableMemorySegment.asSlice(fromPosition, toPosition - fromPosition));
+        return new MappedIterator(tableMemorySegment.asSlice(fromPosition, toPosition - fromPosition), hasExpiration);
     }
     
     public long getCreatedTime() {
@@ -176,6 +201,9 @@ public final class SSTable implements Closeable {
         MemoryAccess.setLongAtOffset(memorySegment, writeOffset, entry.getTimestamp());
         writeOffset += Long.BYTES;
 
+        MemoryAccess.setLongAtOffset(memorySegment, writeOffset, entry.getExpiresAt());
+        writeOffset += Long.BYTES;
+
         final MemorySegment value = entry.value();
         if (value == null) {
             MemoryAccess.setLongAtOffset(memorySegment, writeOffset, TOMBSTONE_TAG);
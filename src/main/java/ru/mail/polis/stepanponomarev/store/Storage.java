@@ -59,7 +59,10 @@ public final class Storage implements Closeable {
 
     public void compact(long timestamp) throws IOException {
         atomicData = AtomicData.beforeFlush(atomicData);
-        final Iterator<TimestampEntry> dataIterator = new TombstoneSkipIterator<>(get(null, null));
+        final Iterator<TimestampEntry> dataIterator = new TombstoneSkipIterator<>(
+                get(null, null),
+                entry -> !entry.isExpired(timestamp)
+        );
         if (!dataIterator.hasNext()) {
             return;
         }
@@ -141,10 +144,10 @@ public final class Storage implements Closeable {
         return TIMESTAMP_DELIM + timestamp + TIMESTAMP_DELIM;
     }
 
-    public TimestampEntry get(MemorySegment key) {
+    public TimestampEntry get(MemorySegment key, long timestamp) {
         final TimestampEntry memoryEntry = atomicData.memTable.get(key);
         if (memoryEntry != null) {
-            return memoryEntry.value() == null ? null : memoryEntry;
+            return isAlive(memoryEntry, timestamp) ? memoryEntry : null;
         }
 
         final Iterator<TimestampEntry> data = get(key, null);
@@ -154,12 +157,16 @@ public final class Storage implements Closeable {
 
         final TimestampEntry entry = data.next();
         if (Utils.compare(key, entry.key()) == 0) {
-            return entry.value() == null ? null : entry;
+            return isAlive(entry, timestamp) ? entry : null;
         }
 
         return null;
     }
 
+    private static boolean isAlive(TimestampEntry entry, long timestamp) {
+        return entry.value() != null && !entry.isExpired(timestamp);
+    }
+
     public Iterator<TimestampEntry> get(MemorySegment from, MemorySegment to) {
         final List<Iterator<TimestampEntry>> entries = new ArrayList<>(ssTables.size() + 2);
         for (SSTable ssTable : ssTables) {
@@ -2,14 +2,19 @@ package ru.mail.polis.test;
 
 import ru.mail.polis.BaseEntry;
 import ru.mail.polis.Config;
+import ru.mail.polis.Cursor;
 import ru.mail.polis.Dao;
 import ru.mail.polis.Entry;
+import ru.mail.polis.Estimate;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 class TestDao<D, E extends Entry<D>> implements Dao<String, Entry<String>> {
 
@@ -22,15 +27,22 @@ class TestDao<D, E extends Entry<D>> implements Dao<String, Entry<String>> {
     final List<Closeable> children = new ArrayList<>();
 
     TestDao(DaoFactory.Factory<D, E> factory, Config config) throws IOException {
+        this(factory, config, factory.createDao(config));
+    }
+
+    private TestDao(DaoFactory.Factory<D, E> factory, Config config, Dao<D, E> delegate) {
         this.factory = factory;
         this.config = config;
-        this.delegate = factory.createDao(config);
+        this.delegate = delegate;
+        this.name = name(delegate);
+    }
 
+    private static String name(Dao<?, ?> delegate) {
         Class<?> delegateClass = delegate.getClass();
         String packageName = delegateClass.getPackageName();
         String lastPackagePart = packageName.substring(packageName.lastIndexOf('.') + 1);
 
-        this.name = "TestDao<" + lastPackagePart + "." + delegateClass.getSimpleName() + ">";
+        return "TestDao<" + lastPackagePart + "." + delegateClass.getSimpleName() + ">";
     }
 
     public Dao<String, Entry<String>> reopen() throws IOException {
@@ -54,12 +66,76 @@ class TestDao<D, E extends Entry<D>> implements Dao<String, Entry<String>> {
         );
     }
 
+    @Override
+    public List<Entry<String>> getAll(Collection<String> keys) throws IOException {
+        List<D> delegateKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            delegateKeys.add(factory.fromString(key));
+        }
+        List<E> entries = delegate.getAll(delegateKeys);
+        List<Entry<String>> result = new ArrayList<>(entries.size());
+        for (E entry : entries) {
+            result.add(entry == null ? null : new BaseEntry<>(
+                    factory.toString(entry.key()),
+                    factory.toString(entry.value())
+            ));
+        }
+        return result;
+    }
+
     @Override
     public Iterator<Entry<String>> get(String from, String to) throws IOException {
-        Iterator<E> iterator = delegate.get(
+        return convert(delegate.get(
+                factory.fromString(from),
+                factory.fromString(to)
+        ));
+    }
+
+    @Override
+    public Iterator<Entry<String>> getDescending(String from, String to) throws IOException {
+        return convert(delegate.getDescending(
+                factory.fromString(from),
+                factory.fromString(to)
+        ));
+    }
+
+    @Override
+    public Stream<Entry<String>> stream(String from, String to) throws IOException {
+        return delegate.stream(factory.fromString(from), factory.fromString(to))
+                .map(entry -> new BaseEntry<>(factory.toString(entry.key()), factory.toString(entry.value())));
+    }
+
+    @Override
+    public Iterator<Entry<String>> prefix(String prefix) throws IOException {
+        return convert(delegate.prefix(factory.fromString(prefix)));
+    }
+
+    @Override
+    public Cursor<Entry<String>> cursor(String from, String to) throws IOException {
+        Cursor<E> cursor = delegate.cursor(
                 factory.fromString(from),
                 factory.fromString(to)
         );
+        Iterator<Entry<String>> iterator = convert(cursor);
+        return new Cursor<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Entry<String> next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    private Iterator<Entry<String>> convert(Iterator<E> iterator) {
         return new Iterator<>() {
             @Override
             public boolean hasNext() {
@@ -76,6 +152,16 @@ class TestDao<D, E extends Entry<D>> implements Dao<String, Entry<String>> {
         };
     }
 
+    @Override
+    public Estimate estimate(String from, String to) throws IOException {
+        return delegate.estimate(factory.fromString(from), factory.fromString(to));
+    }
+
+    @Override
+    public Dao<String, Entry<String>> snapshot() throws IOException {
+        return new TestDao<>(factory, config, delegate.snapshot());
+    }
+
     @Override
     public void upsert(Entry<String> entry) {
         BaseEntry<D> e = new BaseEntry<>(
@@ -85,6 +171,55 @@ class TestDao<D, E extends Entry<D>> implements Dao<String, Entry<String>> {
         delegate.upsert(factory.fromBaseEntry(e));
     }
 
+    @Override
+    public boolean compareAndSet(String key, String expectedValue, Entry<String> newEntry) throws IOException {
+        BaseEntry<D> e = new BaseEntry<>(
+                factory.fromString(newEntry.key()),
+                factory.fromString(newEntry.value())
+        );
+        return delegate.compareAndSet(
+                factory.fromString(key),
+                factory.fromString(expectedValue),
+                factory.fromBaseEntry(e)
+        );
+    }
+
+    @Override
+    public boolean putIfAbsent(Entry<String> entry) throws IOException {
+        BaseEntry<D> e = new BaseEntry<>(
+                factory.fromString(entry.key()),
+                factory.fromString(entry.value())
+        );
+        return delegate.putIfAbsent(factory.fromBaseEntry(e));
+    }
+
+    @Override
+    public void deleteRange(String from, String to) {
+        delegate.deleteRange(factory.fromString(from), factory.fromString(to));
+    }
+
+    @Override
+    public void merge(Entry<String> operand) {
+        BaseEntry<D> e = new BaseEntry<>(
+                factory.fromString(operand.key()),
+                factory.fromString(operand.value())
+        );
+        delegate.merge(factory.fromBaseEntry(e));
+    }
+
+    @Override
+    public void upsertAll(Iterable<Entry<String>> entries) {
+        List<E> batch = new ArrayList<>();
+        for (Entry<String> entry : entries) {
+            BaseEntry<D> e = new BaseEntry<>(
+                    factory.fromString(entry.key()),
+                    factory.fromString(entry.value())
+            );
+            batch.add(factory.fromBaseEntry(e));
+        }
+        delegate.upsertAll(batch);
+    }
+
     @Override
     public void flush() throws IOException {
         delegate.flush();
@@ -95,6 +230,21 @@ class TestDao<D, E extends Entry<D>> implements Dao<String, Entry<String>> {
         delegate.compact();
     }
 
+    @Override
+    public CompletableFuture<Void> flushAsync() {
+        return delegate.flushAsync();
+    }
+
+    @Override
+    public CompletableFuture<Void> compactAsync() {
+        return delegate.compactAsync();
+    }
+
+    @Override
+    public CompletableFuture<Void> scrubAsync(long bytesPerSecond) {
+        return delegate.scrubAsync(bytesPerSecond);
+    }
+
     @Override
     public void close() throws IOException {
         for (Closeable child : children) {
@@ -0,0 +1,56 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Assertions;
+import ru.mail.polis.test.DaoFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class AsyncDaoTest extends BaseTest {
+
+    @DaoTest(stage = 6)
+    void getAndUpsert(Dao<String, Entry<String>> dao) throws Exception {
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        try {
+            AsyncDao<String, Entry<String>> async = new AsyncDao<>(dao, readers);
+            async.upsertAsync(entryAt(1)).get();
+            async.upsertAsync(entry(keyAt(2), null)).get();
+
+            Assertions.assertEquals(entryAt(1), async.getAsync(keyAt(1)).get());
+            Assertions.assertNull(async.getAsync(keyAt(2)).get());
+            Assertions.assertNull(async.getAsync(keyAt(3)).get());
+        } finally {
+            readers.shutdown();
+        }
+    }
+
+    @DaoTest(stage = 6)
+    void flushAndCompactAsync(Dao<String, Entry<String>> dao) throws Exception {
+        List<Entry<String>> entries = entries(1000);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            dao.upsertAll(entries.subList(i * 250, (i + 1) * 250));
+            futures.add(dao.flushAsync());
+        }
+        futures.add(dao.compactAsync());
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+
+        assertSame(dao.all(), entries);
+        dao.close();
+
+        dao = DaoFactory.Factory.reopen(dao);
+        assertSame(dao.all(), entries);
+    }
+
+    @DaoTest(stage = 6)
+    void flushAsyncOfEmptyDao(Dao<String, Entry<String>> dao) throws Exception {
+        dao.flushAsync().get();
+        dao.compactAsync().get();
+        assertEmpty(dao.all());
+    }
+
+}
@@ -0,0 +1,80 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Assertions;
+import ru.mail.polis.test.DaoFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class CompareAndSetTest extends BaseTest {
+
+    @DaoTest(stage = 6)
+    void putIfAbsent(Dao<String, Entry<String>> dao) throws IOException {
+        Assertions.assertTrue(dao.putIfAbsent(entry("k", "1")));
+        Assertions.assertFalse(dao.putIfAbsent(entry("k", "2")));
+        assertSame(dao.get("k"), entry("k", "1"));
+
+        dao.upsert(entry("k", null));
+        Assertions.assertTrue(dao.putIfAbsent(entry("k", "3")));
+        assertSame(dao.get("k"), entry("k", "3"));
+    }
+
+    @DaoTest(stage = 6)
+    void compareAndSetOnDisk(Dao<String, Entry<String>> dao) throws IOException {
+        dao.upsertAll(entries(100));
+        dao.close();
+        dao = DaoFactory.Factory.reopen(dao);
+
+        Assertions.assertFalse(dao.compareAndSet(keyAt(1), "wrong", entry(keyAt(1), "new")));
+        Assertions.assertFalse(dao.compareAndSet(keyAt(1), null, entry(keyAt(1), "new")));
+        Assertions.assertFalse(dao.putIfAbsent(entry(keyAt(1), "new")));
+        assertSame(dao.get(keyAt(1)), entryAt(1));
+
+        Assertions.assertTrue(dao.compareAndSet(keyAt(1), entryAt(1).value(), entry(keyAt(1), "new")));
+        assertSame(dao.get(keyAt(1)), entry(keyAt(1), "new"));
+
+        Assertions.assertTrue(dao.compareAndSet(keyAt(2), entryAt(2).value(), entry(keyAt(2), null)));
+        Assertions.assertNull(dao.get(keyAt(2)));
+        Assertions.assertTrue(dao.compareAndSet(keyAt(2), null, entry(keyAt(2), "back")));
+        assertSame(dao.get(keyAt(2)), entry(keyAt(2), "back"));
+    }
+
+    @DaoTest(stage = 6)
+    void concurrentIncrements(Dao<String, Entry<String>> dao) throws Exception {
+        int threads = 4;
+        int increments = 500;
+        dao.upsert(entry("counter", "0"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < increments; i++) {
+                        while (true) {
+                            String current = dao.get("counter").value();
+                            String next = String.valueOf(Integer.parseInt(current) + 1);
+                            if (dao.compareAndSet("counter", current, entry("counter", next))) {
+                                break;
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertSame(dao.get("counter"), entry("counter", String.valueOf(threads * increments)));
+    }
+
+}
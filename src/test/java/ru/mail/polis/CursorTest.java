@@ -0,0 +1,49 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Assertions;
+import ru.mail.polis.test.DaoFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CursorTest extends BaseTest {
+
+    @DaoTest(stage = 6)
+    void cursorSurvivesCompaction(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(1000);
+        dao.upsertAll(entries.subList(0, 500));
+        dao.flush();
+        dao.upsertAll(entries.subList(500, 1000));
+        dao.flush();
+
+        try (Cursor<Entry<String>> cursor = dao.cursor(null, null)) {
+            Assertions.assertEquals(entryAt(0), cursor.next());
+
+            dao.upsert(entry(keyAt(1), null));
+            dao.flush();
+            dao.compact();
+
+            assertSame(cursor, entries.subList(1, 1000));
+        }
+
+        List<Entry<String>> expected = new ArrayList<>(entries);
+        expected.remove(1);
+        assertSame(dao.all(), expected);
+    }
+
+    @DaoTest(stage = 6)
+    void cursorOutlivesDao(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(100);
+        dao.upsertAll(entries);
+        dao.close();
+        dao = DaoFactory.Factory.reopen(dao);
+
+        Cursor<Entry<String>> cursor = dao.cursor(keyAt(10), keyAt(20));
+        dao.close();
+
+        assertSame(cursor, entries.subList(10, 20));
+        cursor.close();
+    }
+
+}
@@ -0,0 +1,121 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Assertions;
+import ru.mail.polis.test.DaoFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class DeleteRangeTest extends BaseTest {
+
+    @DaoTest(stage = 6)
+    void deleteRangeInMemory(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(100);
+        dao.upsertAll(entries);
+
+        dao.deleteRange(keyAt(10), keyAt(90));
+
+        assertSame(dao.all(), withoutRange(entries, 10, 90));
+        Assertions.assertNull(dao.get(keyAt(10)));
+        Assertions.assertNull(dao.get(keyAt(89)));
+        assertSame(dao.get(keyAt(90)), entryAt(90));
+    }
+
+    @DaoTest(stage = 6)
+    void deleteRangeKeepsOpenRanges(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(100);
+        dao.upsertAll(entries.subList(0, 50));
+        dao.flush();
+        dao.upsertAll(entries.subList(50, 100));
+
+        try (Cursor<Entry<String>> before = dao.cursor(null, null)) {
+            dao.deleteRange(keyAt(20), keyAt(70));
+            dao.upsert(entryAt(30));
+
+            assertSame(before, entries);
+        }
+        List<Entry<String>> expected = withoutRange(entries, 20, 70);
+        expected.add(20, entryAt(30));
+        assertSame(dao.all(), expected);
+    }
+
+    @DaoTest(stage = 6)
+    void deleteRangeOnDisk(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(100);
+        dao.upsertAll(entries.subList(0, 50));
+        dao.flush();
+        dao.upsertAll(entries.subList(50, 100));
+        dao.flush();
+
+        dao.deleteRange(keyAt(20), keyAt(70));
+        assertSame(dao.all(), withoutRange(entries, 20, 70));
+        dao.close();
+
+        dao = DaoFactory.Factory.reopen(dao);
+        List<Entry<String>> expected = withoutRange(entries, 20, 70);
+        assertSame(dao.all(), expected);
+        assertSame(dao.getDescending(null, null), reversed(expected));
+        assertSame(dao.prefix("k000000007"), entries.subList(70, 80));
+        assertEmpty(dao.prefix("k000000003"));
+
+        List<Entry<String>> found = dao.getAll(List.of(keyAt(19), keyAt(20), keyAt(69), keyAt(70)));
+        assertSame(found.get(0), entryAt(19));
+        Assertions.assertNull(found.get(1));
+        Assertions.assertNull(found.get(2));
+        assertSame(found.get(3), entryAt(70));
+    }
+
+    @DaoTest(stage = 6)
+    void newerUpsertsSurvive(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(100);
+        dao.upsertAll(entries);
+        dao.flush();
+
+        dao.deleteRange(keyAt(10), null);
+        dao.upsert(entry(keyAt(50), "new"));
+        assertSame(dao.get(keyAt(50)), entry(keyAt(50), "new"));
+        dao.flush();
+
+        dao.upsert(entry(keyAt(60), "newer"));
+        dao.close();
+        dao = DaoFactory.Factory.reopen(dao);
+
+        List<Entry<String>> expected = new ArrayList<>(entries.subList(0, 10));
+        expected.add(entry(keyAt(50), "new"));
+        expected.add(entry(keyAt(60), "newer"));
+        assertSame(dao.all(), expected);
+        Assertions.assertNull(dao.get(keyAt(99)));
+    }
+
+    @DaoTest(stage = 6)
+    void compactionDropsRange(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(100);
+        dao.upsertAll(entries);
+        dao.flush();
+        dao.deleteRange(null, keyAt(50));
+        dao.flush();
+
+        dao.compact();
+        dao.close();
+        dao = DaoFactory.Factory.reopen(dao);
+
+        assertSame(dao.all(), entries.subList(50, 100));
+        dao.upsert(entryAt(0));
+        assertSame(dao.get(keyAt(0)), entryAt(0));
+    }
+
+    private static List<Entry<String>> withoutRange(List<Entry<String>> entries, int from, int to) {
+        List<Entry<String>> result = new ArrayList<>(entries.subList(0, from));
+        result.addAll(entries.subList(to, entries.size()));
+        return result;
+    }
+
+    private static List<Entry<String>> reversed(List<Entry<String>> entries) {
+        List<Entry<String>> result = new ArrayList<>(entries);
+        Collections.reverse(result);
+        return result;
+    }
+
+}
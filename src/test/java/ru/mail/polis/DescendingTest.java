@@ -0,0 +1,49 @@
+package ru.mail.polis;
+
+import ru.mail.polis.test.DaoFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class DescendingTest extends BaseTest {
+
+    @DaoTest(stage = 6)
+    void descendingInMemory(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(100);
+        dao.upsertAll(entries);
+
+        assertSame(dao.getDescending(null, null), reversed(entries));
+        assertSame(dao.getDescending(keyAt(10), keyAt(20)), reversed(entries.subList(10, 20)));
+        assertSame(dao.getDescending(keyAt(95), null), reversed(entries.subList(95, 100)));
+    }
+
+    @DaoTest(stage = 6)
+    void descendingMergesFiles(Dao<String, Entry<String>> dao) throws IOException {
+        int count = 300;
+        for (int file = 0; file < 3; file++) {
+            for (int i = file; i < count; i += 3) {
+                dao.upsert(entryAt(i));
+            }
+            dao.close();
+            dao = DaoFactory.Factory.reopen(dao);
+        }
+        dao.upsert(entry(keyAt(1), "fresh"));
+        dao.upsert(entry(keyAt(2), null));
+
+        List<Entry<String>> expected = new ArrayList<>(entries(count));
+        expected.set(1, entry(keyAt(1), "fresh"));
+        expected.remove(2);
+
+        assertSame(dao.getDescending(null, null), reversed(expected));
+        assertSame(dao.getDescending(keyAt(0), keyAt(4)), entryAt(3), entry(keyAt(1), "fresh"), entryAt(0));
+    }
+
+    private static List<Entry<String>> reversed(List<Entry<String>> entries) {
+        List<Entry<String>> result = new ArrayList<>(entries);
+        Collections.reverse(result);
+        return result;
+    }
+
+}
@@ -0,0 +1,60 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Assertions;
+
+import java.io.IOException;
+import java.util.List;
+
+public class EstimateTest extends BaseTest {
+
+    @DaoTest(stage = 6)
+    void estimateInMemory(Dao<String, Entry<String>> dao) throws IOException {
+        dao.upsertAll(entries(100));
+
+        Estimate range = dao.estimate(keyAt(10), keyAt(20));
+        Assertions.assertEquals(10, range.count());
+        Assertions.assertTrue(range.byteSize() > 0);
+
+        Assertions.assertEquals(0, dao.estimate(keyAt(10), keyAt(10)).count());
+        Assertions.assertEquals(100, dao.estimate(null, null).count());
+    }
+
+    @DaoTest(stage = 6)
+    void estimateOnDisk(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(1000);
+        dao.upsertAll(entries);
+        dao.flush();
+
+        Estimate total = dao.estimate(null, null);
+        Assertions.assertEquals(1000, total.count());
+
+        Estimate range = dao.estimate(keyAt(100), keyAt(300));
+        Assertions.assertEquals(200, range.count());
+        Assertions.assertEquals(total.byteSize() / 5.0, range.byteSize(), total.byteSize() / 50.0);
+
+        Assertions.assertEquals(100, dao.estimate(keyAt(900), null).count());
+        Assertions.assertEquals(100, dao.estimate(null, keyAt(100)).count());
+    }
+
+    @DaoTest(stage = 6)
+    void estimateCountsMemory(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(2000);
+        dao.upsertAll(entries.subList(0, 1000));
+        dao.flush();
+        dao.upsertAll(entries.subList(1000, 2000));
+
+        Assertions.assertEquals(2000, dao.estimate(null, null).count());
+    }
+
+    @DaoTest(stage = 6)
+    void estimateRangeInMemoryOnly(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(2000);
+        dao.upsertAll(entries.subList(0, 1000));
+        dao.flush();
+        dao.upsertAll(entries.subList(1000, 1100));
+
+        Assertions.assertEquals(100, dao.estimate(keyAt(1000), null).count());
+        Assertions.assertEquals(0, dao.estimate(keyAt(1100), null).count());
+    }
+
+}
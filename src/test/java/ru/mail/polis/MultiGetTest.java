@@ -0,0 +1,49 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Assertions;
+import ru.mail.polis.test.DaoFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MultiGetTest extends BaseTest {
+
+    @DaoTest(stage = 6)
+    void getAllKeepsOrder(Dao<String, Entry<String>> dao) throws IOException {
+        dao.upsertAll(entries(100));
+
+        List<Entry<String>> result = dao.getAll(Arrays.asList(keyAt(42), "missing", keyAt(7), keyAt(42)));
+
+        Assertions.assertEquals(Arrays.asList(entryAt(42), null, entryAt(7), entryAt(42)), result);
+    }
+
+    @DaoTest(stage = 6)
+    void getAllFromManyFiles(Dao<String, Entry<String>> dao) throws IOException {
+        int count = 1000;
+        for (int file = 0; file < 3; file++) {
+            for (int i = file; i < count; i += 3) {
+                dao.upsert(entryAt(i));
+            }
+            dao.close();
+            dao = DaoFactory.Factory.reopen(dao);
+        }
+        dao.upsert(entry(keyAt(12), null));
+        dao.upsert(entry(keyAt(11), "fresh"));
+
+        List<String> keys = new ArrayList<>();
+        List<Entry<String>> expected = new ArrayList<>();
+        for (int i = count + 5; i >= 0; i -= 5) {
+            keys.add(keyAt(i));
+            expected.add(i < count ? entryAt(i) : null);
+        }
+        keys.add(keyAt(12));
+        expected.add(null);
+        keys.add(keyAt(11));
+        expected.add(entry(keyAt(11), "fresh"));
+
+        Assertions.assertEquals(expected, dao.getAll(keys));
+    }
+
+}
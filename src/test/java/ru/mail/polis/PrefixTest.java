@@ -0,0 +1,61 @@
+package ru.mail.polis;
+
+import ru.mail.polis.test.DaoFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PrefixTest extends BaseTest {
+
+    @DaoTest(stage = 6)
+    void prefixInMemory(Dao<String, Entry<String>> dao) throws IOException {
+        dao.upsert(entry("a", "1"));
+        dao.upsert(entry("ab", "2"));
+        dao.upsert(entry("abc", "3"));
+        dao.upsert(entry("abd", null));
+        dao.upsert(entry("b", "4"));
+
+        assertSame(dao.prefix("ab"), entry("ab", "2"), entry("abc", "3"));
+        assertSame(dao.prefix("b"), entry("b", "4"));
+        assertEmpty(dao.prefix("c"));
+        assertSame(dao.prefix(""), entry("a", "1"), entry("ab", "2"), entry("abc", "3"), entry("b", "4"));
+    }
+
+    @DaoTest(stage = 6)
+    void prefixAcrossFiles(Dao<String, Entry<String>> dao) throws IOException {
+        int tenants = 5;
+        int count = 100;
+        for (int tenant = 0; tenant < tenants; tenant++) {
+            dao.upsertAll(entries("tenant" + tenant + "/", "v", count));
+            dao.close();
+            dao = DaoFactory.Factory.reopen(dao);
+        }
+        dao.upsert(entry(keyAt("tenant3/", 0), null));
+
+        for (int tenant = 0; tenant < tenants; tenant++) {
+            List<Entry<String>> expected = new ArrayList<>(entries("tenant" + tenant + "/", "v", count));
+            if (tenant == 3) {
+                expected.remove(0);
+            }
+            assertSame(dao.prefix("tenant" + tenant + "/"), expected);
+        }
+        assertEmpty(dao.prefix("tenant5/"));
+        assertEmpty(dao.prefix("tenant0/x"));
+        assertSame(dao.prefix(keyAt("tenant1/", 42)), entries("tenant1/", "v", count).get(42));
+
+        dao.compact();
+        assertSame(dao.prefix("tenant4/"), entries("tenant4/", "v", count));
+    }
+
+    @DaoTest(stage = 6)
+    void prefixOfGreatestChar(Dao<String, Entry<String>> dao) throws IOException {
+        dao.upsert(entry("￿", "1"));
+        dao.upsert(entry("￿￿", "2"));
+        dao.close();
+        dao = DaoFactory.Factory.reopen(dao);
+
+        assertSame(dao.prefix("￿"), entry("￿", "1"), entry("￿￿", "2"));
+    }
+
+}
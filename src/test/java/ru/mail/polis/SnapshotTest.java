@@ -0,0 +1,82 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Assertions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SnapshotTest extends BaseTest {
+
+    @DaoTest(stage = 6)
+    void snapshotIgnoresLaterUpserts(Dao<String, Entry<String>> dao) throws IOException {
+        dao.upsertAll(entries(100));
+
+        try (Dao<String, Entry<String>> snapshot = dao.snapshot()) {
+            dao.upsert(entry(keyAt(1), null));
+            dao.upsert(entry(keyAt(2), "new"));
+            dao.upsert(entryAt(100));
+
+            assertSame(snapshot.all(), entries(100));
+            assertSame(snapshot.get(keyAt(2)), entryAt(2));
+            Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.upsert(entryAt(101)));
+        }
+
+        assertSame(dao.get(keyAt(2)), entry(keyAt(2), "new"));
+        Assertions.assertNull(dao.get(keyAt(1)));
+    }
+
+    @DaoTest(stage = 6)
+    void snapshotIgnoresLaterRangeDeletes(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(100);
+        dao.upsertAll(entries);
+
+        try (Dao<String, Entry<String>> snapshot = dao.snapshot()) {
+            dao.deleteRange(keyAt(10), keyAt(90));
+            dao.upsertAll(List.of(entry(keyAt(50), "new"), entryAt(100)));
+
+            assertSame(snapshot.all(), entries);
+            assertSame(snapshot.get(keyAt(50)), entryAt(50));
+            Assertions.assertEquals(100, snapshot.estimate(null, null).count());
+        }
+
+        List<Entry<String>> expected = new ArrayList<>(entries.subList(0, 10));
+        expected.add(entry(keyAt(50), "new"));
+        expected.addAll(entries(101).subList(90, 101));
+        assertSame(dao.all(), expected);
+    }
+
+    @DaoTest(stage = 6)
+    void snapshotSurvivesFlushAndCompact(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(1000);
+        dao.upsertAll(entries);
+        dao.flush();
+        dao.upsertAll(entries("k", "x", 500));
+
+        try (Dao<String, Entry<String>> snapshot = dao.snapshot()) {
+            dao.flush();
+            for (int i = 0; i < 1000; i += 2) {
+                dao.upsert(entry(keyAt(i), null));
+            }
+            dao.flush();
+            dao.compact();
+
+            List<Entry<String>> expected = new ArrayList<>(entries("k", "x", 500));
+            expected.addAll(entries.subList(500, 1000));
+            assertSame(snapshot.all(), expected);
+        }
+    }
+
+    @DaoTest(stage = 6)
+    void snapshotOutlivesDao(Dao<String, Entry<String>> dao) throws IOException {
+        dao.upsertAll(entries(100));
+        dao.flush();
+
+        Dao<String, Entry<String>> snapshot = dao.snapshot();
+        dao.close();
+
+        assertSame(snapshot.all(), entries(100));
+        snapshot.close();
+    }
+
+}
@@ -0,0 +1,50 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Assertions;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class StreamTest extends BaseTest {
+
+    @DaoTest(stage = 6)
+    void streamRange(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(100);
+        dao.upsertAll(entries);
+        dao.upsert(entry(keyAt(15), null));
+
+        try (Stream<Entry<String>> stream = dao.stream(keyAt(10), keyAt(20))) {
+            List<Entry<String>> expected = entries.subList(10, 20).stream()
+                    .filter(entry -> !entry.key().equals(keyAt(15)))
+                    .collect(Collectors.toList());
+            Assertions.assertEquals(expected, stream.collect(Collectors.toList()));
+        }
+    }
+
+    @DaoTest(stage = 6)
+    void parallelStreamKeepsOrder(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(10_000);
+        dao.upsertAll(entries.subList(0, 5_000));
+        dao.flush();
+        dao.upsertAll(entries.subList(5_000, 10_000));
+        dao.flush();
+        dao.compact();
+        dao.upsert(entry(keyAt(42), "changed"));
+
+        try (Stream<Entry<String>> stream = dao.stream(null, null)) {
+            List<Entry<String>> actual = stream.parallel().collect(Collectors.toList());
+            Assertions.assertEquals(entries.size(), actual.size());
+            for (int i = 0; i < entries.size(); i++) {
+                Entry<String> expected = i == 42 ? entry(keyAt(42), "changed") : entries.get(i);
+                Assertions.assertEquals(expected, actual.get(i));
+            }
+        }
+
+        try (Stream<Entry<String>> stream = dao.stream(keyAt(100), keyAt(9_000))) {
+            Assertions.assertEquals(8_900, stream.parallel().count());
+        }
+    }
+
+}
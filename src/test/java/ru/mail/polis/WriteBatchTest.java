@@ -0,0 +1,67 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Assertions;
+import ru.mail.polis.test.DaoFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+public class WriteBatchTest extends BaseTest {
+
+    @DaoTest(stage = 6)
+    void upsertAll(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(1000);
+        dao.upsertAll(entries);
+
+        assertSame(dao.all(), entries);
+        assertSame(dao.get(keyAt(42)), entryAt(42));
+    }
+
+    @DaoTest(stage = 6)
+    void upsertAllOverridesAndDeletes(Dao<String, Entry<String>> dao) throws IOException {
+        dao.upsertAll(entries(10));
+        dao.upsertAll(List.of(
+                entry(keyAt(1), null),
+                entry(keyAt(2), "new"),
+                entry(keyAt(3), null)
+        ));
+
+        assertSame(dao.get(keyAt(0), keyAt(5)),
+                entryAt(0),
+                entry(keyAt(2), "new"),
+                entryAt(4)
+        );
+    }
+
+    @DaoTest(stage = 6)
+    void upsertAllIsAtomicForOpenRanges(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(100);
+        dao.upsertAll(entries);
+
+        try (Cursor<Entry<String>> before = dao.cursor(keyAt(0), keyAt(100))) {
+            assertSame(before.next(), entryAt(0));
+            dao.upsertAll(List.of(
+                    entry(keyAt(1), null),
+                    entry(keyAt(50), "new"),
+                    entry(keyAt(50) + "a", "new")
+            ));
+
+            assertSame(before, entries.subList(1, 100));
+        }
+        Iterator<Entry<String>> after = dao.get(keyAt(49), keyAt(51));
+        assertSame(after, entryAt(49), entry(keyAt(50), "new"), entry(keyAt(50) + "a", "new"));
+        Assertions.assertNull(dao.get(keyAt(1)));
+    }
+
+    @DaoTest(stage = 6)
+    void upsertAllPersists(Dao<String, Entry<String>> dao) throws IOException {
+        List<Entry<String>> entries = entries(10_000);
+        dao.upsertAll(entries);
+        dao.close();
+
+        dao = DaoFactory.Factory.reopen(dao);
+        assertSame(dao.all(), entries);
+    }
+
+}
@@ -0,0 +1,448 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static ru.mail.polis.artyomdrozdov.Fixtures.key;
+import static ru.mail.polis.artyomdrozdov.Fixtures.newDao;
+import static ru.mail.polis.artyomdrozdov.Fixtures.segment;
+import static ru.mail.polis.artyomdrozdov.Fixtures.string;
+
+public class BlockSSTableTest {
+
+    private static final int COUNT = 10_000;
+
+    @Test
+    void manyBlocks(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(entry(i));
+            }
+            dao.flush();
+
+            for (int i = 0; i < COUNT; i++) {
+                Assertions.assertEquals(value(i), string(dao.get(key(i)).value()));
+            }
+            Assertions.assertNull(dao.get(segment("k")));
+            Assertions.assertNull(dao.get(segment("z")));
+
+            assertRange(dao.get(key(1234), key(5678)), 1234, 5678);
+            assertRange(dao.get(segment("k000012345"), null), 1235, COUNT);
+
+            Iterator<Entry<MemorySegment>> descending = dao.getDescending(key(100), key(9000));
+            for (int i = 8999; i >= 100; i--) {
+                Assertions.assertEquals(string(key(i)), string(descending.next().key()));
+            }
+            Assertions.assertFalse(descending.hasNext());
+        }
+
+        // records with long sizes would take the whole file except for a small index and footer
+        long records = COUNT * (2L * Long.BYTES + key(0).byteSize() + segment(value(0)).byteSize());
+        long fileSize = Files.size(path.resolve("data0.dat"));
+        Assertions.assertTrue(fileSize < records * 1.05, "file size " + fileSize + " for records " + records);
+    }
+
+    @Test
+    void varintRecordSizes(@TempDir Path path) throws IOException {
+        String valuePadding = "-".repeat(100);
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                MemorySegment value = i % 3 == 0 ? null : segment(value(i) + valuePadding);
+                dao.upsert(new BaseEntry<>(key(i), value));
+            }
+            dao.flush();
+
+            for (int i = 0; i < COUNT; i++) {
+                Entry<MemorySegment> entry = dao.get(key(i));
+                if (i % 3 == 0) {
+                    Assertions.assertNull(entry);
+                } else {
+                    Assertions.assertEquals(value(i) + valuePadding, string(entry.value()));
+                }
+            }
+        }
+
+        // sizes below 128 take a byte each and a tombstone is just its kind
+        long values = COUNT * 2L / 3 * (value(0).length() + valuePadding.length());
+        long maxRecords = values + COUNT * (4L + key(0).byteSize());
+        long fileSize = Files.size(path.resolve("data0.dat"));
+        Assertions.assertTrue(fileSize < maxRecords, "file size " + fileSize + " for records " + maxRecords);
+    }
+
+    @Test
+    void sharedKeyPrefixes(@TempDir Path path) throws IOException {
+        String prefix = "tenant-00000042/table-00000007/";
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(new BaseEntry<>(segment(prefix + i), segment(value(i))));
+            }
+            // keys being prefixes of each other
+            dao.upsert(new BaseEntry<>(segment(prefix + "1"), null));
+            dao.upsert(new BaseEntry<>(segment(prefix + "10"), segment("x")));
+            dao.upsert(new BaseEntry<>(segment(prefix + "100"), segment("xx")));
+            dao.flush();
+
+            Assertions.assertNull(dao.get(segment(prefix + "1")));
+            Assertions.assertEquals("x", string(dao.get(segment(prefix + "10")).value()));
+            Assertions.assertEquals("xx", string(dao.get(segment(prefix + "100")).value()));
+            for (int i = 101; i < COUNT; i++) {
+                Assertions.assertEquals(value(i), string(dao.get(segment(prefix + i)).value()));
+            }
+
+            Iterator<Entry<MemorySegment>> iterator = dao.get(segment(prefix + "1"), segment(prefix + "1001"));
+            Assertions.assertEquals(prefix + "10", string(iterator.next().key()));
+            Assertions.assertEquals(prefix + "100", string(iterator.next().key()));
+            Assertions.assertEquals(prefix + "1000", string(iterator.next().key()));
+            Assertions.assertFalse(iterator.hasNext());
+        }
+
+        long records = COUNT * (2L * Long.BYTES + prefix.length() + segment(value(0)).byteSize());
+        long fileSize = Files.size(path.resolve("data0.dat"));
+        Assertions.assertTrue(fileSize < records * 0.7, "file size " + fileSize + " for records " + records);
+    }
+
+    @Test
+    void compressedBlocks(@TempDir Path path) throws IOException {
+        Path plainPath = Files.createDirectory(path.resolve("plain"));
+        Path compressedPath = Files.createDirectory(path.resolve("compressed"));
+        try (MemorySegmentDao plain = newDao(plainPath);
+             MemorySegmentDao compressed = newDao(compressedPath, Config.Compression.DEFLATE)) {
+            for (int i = 0; i < COUNT; i++) {
+                plain.upsert(jsonEntry(i));
+                compressed.upsert(jsonEntry(i));
+            }
+        }
+        long plainSize = Files.size(plainPath.resolve("data0.dat"));
+        long compressedSize = Files.size(compressedPath.resolve("data0.dat"));
+        Assertions.assertTrue(compressedSize * 3 < plainSize, compressedSize + " compressed of " + plainSize);
+
+        // files written with and without compression are read together
+        try (MemorySegmentDao dao = newDao(compressedPath)) {
+            dao.upsert(jsonEntry(COUNT));
+            dao.flush();
+            assertJsonRange(dao.get(key(4000), key(4100)), 4000, 4100);
+            Assertions.assertEquals(json(COUNT), string(dao.get(key(COUNT)).value()));
+        }
+        try (MemorySegmentDao dao = newDao(compressedPath, Config.Compression.DEFLATE)) {
+            dao.compact();
+            for (int i = 0; i <= COUNT; i += 7) {
+                Assertions.assertEquals(json(i), string(dao.get(key(i)).value()));
+            }
+            Iterator<Entry<MemorySegment>> descending = dao.getDescending(null, key(100));
+            for (int i = 99; i >= 0; i--) {
+                Assertions.assertEquals(json(i), string(descending.next().value()));
+            }
+            Assertions.assertFalse(descending.hasNext());
+        }
+        try (MemorySegmentDao dao = newDao(compressedPath)) {
+            assertJsonRange(dao.all(), 0, COUNT + 1);
+        }
+    }
+
+    @Test
+    void eytzingerIndex(@TempDir Path path) throws IOException {
+        String prefix = "tenant-00000042/";
+        Config config = new Config(path, 1 << 24, Config.Compression.NONE, Config.IndexLayout.EYTZINGER);
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(entry(i));
+                // keys with an equal 8-byte prefix in many blocks
+                dao.upsert(new BaseEntry<>(segment(prefix + i), segment(value(i))));
+            }
+            // keys shorter than the prefix
+            dao.upsert(new BaseEntry<>(segment("k"), segment("x")));
+            dao.upsert(new BaseEntry<>(segment("k\0"), segment("xx")));
+        }
+        // files written with another index layout are read together
+        try (MemorySegmentDao dao = newDao(path)) {
+            dao.upsert(new BaseEntry<>(segment("a"), segment("a")));
+            dao.flush();
+        }
+
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            for (int i = 0; i < COUNT; i++) {
+                Assertions.assertEquals(value(i), string(dao.get(key(i)).value()));
+                Assertions.assertEquals(value(i), string(dao.get(segment(prefix + i)).value()));
+            }
+            Assertions.assertEquals("x", string(dao.get(segment("k")).value()));
+            Assertions.assertEquals("xx", string(dao.get(segment("k\0")).value()));
+            Assertions.assertEquals("a", string(dao.get(segment("a")).value()));
+            Assertions.assertNull(dao.get(segment("j")));
+            Assertions.assertNull(dao.get(segment("k0")));
+            Assertions.assertNull(dao.get(segment(prefix)));
+            Assertions.assertNull(dao.get(segment("z")));
+
+            assertRange(dao.get(key(1234), key(5678)), 1234, 5678);
+            assertRange(dao.get(segment("k000012345"), segment("l")), 1235, COUNT);
+
+            // a file without entries
+            dao.deleteRange(segment("z"), null);
+            dao.flush();
+
+            dao.compact();
+            Assertions.assertEquals(value(4321), string(dao.get(segment(prefix + 4321)).value()));
+        }
+    }
+
+    @Test
+    void getAllReadsBlocksForward(@TempDir Path path) throws IOException {
+        Config[] configs = {
+                new Config(path.resolve("plain"), 1 << 24),
+                new Config(path.resolve("compressed"), 1 << 24, Config.Compression.DEFLATE),
+                new Config(path.resolve("eytzinger"), 1 << 24, Config.Compression.NONE, Config.IndexLayout.EYTZINGER)
+        };
+        // present keys, keys between them, duplicates and keys before and after all of them
+        List<MemorySegment> keys = new ArrayList<>();
+        keys.add(segment("a"));
+        for (int i = 0; i < COUNT - 1; i += 3) {
+            keys.add(key(i));
+            keys.add(segment(string(key(i)) + "x"));
+        }
+        keys.add(key(COUNT - 1));
+        keys.add(key(COUNT - 1));
+        keys.add(segment("z"));
+        MemorySegment[] sortedKeys = keys.toArray(new MemorySegment[0]);
+
+        for (Config config : configs) {
+            Files.createDirectory(config.basePath());
+            try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+                for (int i = 0; i < COUNT; i++) {
+                    dao.upsert(entry(i));
+                }
+            }
+            MemorySegment sstable = MemorySegment.ofArray(Files.readAllBytes(config.basePath().resolve("data0.dat")));
+            SSTableFormat format = SSTableFormats.of(sstable);
+            Assertions.assertSame(BlockSSTable.FORMAT, format);
+
+            @SuppressWarnings("unchecked")
+            Entry<MemorySegment>[] results = (Entry<MemorySegment>[]) new Entry<?>[sortedKeys.length];
+            // nothing is ruled out, so absent keys are looked up in blocks too
+            format.getAll(sstable, sortedKeys, results, null, key -> true);
+            for (int k = 0; k < sortedKeys.length; k++) {
+                Entry<MemorySegment> expected = format.get(sstable, sortedKeys[k], null);
+                if (expected == null) {
+                    Assertions.assertNull(results[k], string(sortedKeys[k]));
+                } else {
+                    Assertions.assertEquals(string(expected.value()), string(results[k].value()));
+                }
+            }
+            Assertions.assertEquals(value(COUNT - 1), string(results[sortedKeys.length - 2].value()));
+
+            try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+                List<Entry<MemorySegment>> entries = dao.getAll(List.of(key(7), segment("k"), key(6), key(5000)));
+                Assertions.assertEquals(value(7), string(entries.get(0).value()));
+                Assertions.assertNull(entries.get(1));
+                Assertions.assertEquals(value(6), string(entries.get(2).value()));
+                Assertions.assertEquals(value(5000), string(entries.get(3).value()));
+            }
+        }
+    }
+
+    @Test
+    void denseIndexFilesAreReadable(@TempDir Path path) throws IOException {
+        writeDenseIndexFile(path.resolve("data0.dat"), 100);
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            Assertions.assertEquals(value(42), string(dao.get(key(42)).value()));
+            Assertions.assertNull(dao.get(key(100)));
+            assertRange(dao.get(key(10), key(20)), 10, 20);
+
+            dao.upsert(new BaseEntry<>(key(100), segment(value(100))));
+            dao.flush();
+            dao.compact();
+        }
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            assertRange(dao.all(), 0, 101);
+            // the old file is 0, the flushed one is 1
+            Assertions.assertEquals(BlockSSTable.VERSION,
+                    Files.readAllBytes(path.resolve("data2.dat"))[0]);
+        }
+    }
+
+    @Test
+    void longSizesFilesAreReadable(@TempDir Path path) throws IOException {
+        writeLongSizesFile(path.resolve("data0.dat"), 100);
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            Assertions.assertEquals(value(42), string(dao.get(key(42)).value()));
+            Assertions.assertNull(dao.get(key(7)));
+            Assertions.assertNull(dao.get(key(100)));
+            assertRange(dao.get(key(20), key(40)), 20, 40);
+
+            // keys of one block are read forward, across restarts and from the same one
+            List<Entry<MemorySegment>> entries = dao.getAll(List.of(key(43), key(3), key(7), key(42), key(100)));
+            Assertions.assertEquals(value(43), string(entries.get(0).value()));
+            Assertions.assertEquals(value(3), string(entries.get(1).value()));
+            Assertions.assertNull(entries.get(2));
+            Assertions.assertEquals(value(42), string(entries.get(3).value()));
+            Assertions.assertNull(entries.get(4));
+
+            dao.upsert(new BaseEntry<>(key(7), segment(value(7))));
+            dao.flush();
+            dao.compact();
+        }
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            assertRange(dao.all(), 0, 100);
+            // the old file is 0, the flushed one is 1
+            Assertions.assertEquals(BlockSSTable.VERSION,
+                    Files.readAllBytes(path.resolve("data2.dat"))[0]);
+        }
+    }
+
+    @Test
+    void oldVersionsAreUpgradedByCompaction(@TempDir Path path) throws IOException {
+        writeDenseIndexFile(path.resolve("data0.dat"), 100);
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            // a single sstable of an old version is not compacted yet
+            dao.compact();
+            assertRange(dao.all(), 0, 100);
+        }
+
+        Assertions.assertFalse(Files.exists(path.resolve("data0.dat")));
+        Assertions.assertEquals(SSTableFormats.LATEST_VERSION, Files.readAllBytes(path.resolve("data1.dat"))[0]);
+        try (MemorySegmentDao dao = newDao(path)) {
+            assertRange(dao.all(), 0, 100);
+        }
+    }
+
+    @Test
+    void unknownVersionFailsLoad(@TempDir Path path) throws IOException {
+        Path file = path.resolve("data0.dat");
+        writeDenseIndexFile(file, 100);
+        byte[] data = Files.readAllBytes(file);
+        data[0] = 42;
+        Files.write(file, data);
+
+        Assertions.assertThrows(CorruptedSSTableException.class, () -> newDao(path));
+    }
+
+    // a single block of the first block format version, with key 7 deleted:
+    // (fileVersion)(entryCount)(flags)(blockCount)(indexStart)
+    // |((sharedSize << 32 | unsharedSize)(unsharedKey)(valueSize/value)...)((restartOffset)...)(restartCount)
+    // |(blockOffset)(firstEntryIndex)(firstKeyOffset)(keySize/key)|(footerStart)
+    private static void writeLongSizesFile(Path file, int count) throws IOException {
+        long headerSize = 5L * Long.BYTES;
+        long restartCount = (count + BlockSSTable.RESTART_INTERVAL - 1) / BlockSSTable.RESTART_INTERVAL;
+        MemorySegment sstable = MemorySegment.ofArray(new byte[(int) (headerSize + count * 64L + 256)]);
+        long offset = headerSize;
+        long[] restarts = new long[(int) restartCount];
+        MemorySegment previousKey = MemorySegment.ofArray(new byte[0]);
+        for (int i = 0; i < count; i++) {
+            MemorySegment key = key(i);
+            long shared = 0;
+            if (i % BlockSSTable.RESTART_INTERVAL == 0) {
+                restarts[(int) (i / BlockSSTable.RESTART_INTERVAL)] = offset - headerSize;
+            } else {
+                shared = previousKey.mismatch(key);
+            }
+            MemorySegment unshared = key.asSlice(shared);
+            MemoryAccess.setLongAtOffset(sstable, offset, shared << Integer.SIZE | unshared.byteSize());
+            sstable.asSlice(offset + Long.BYTES, unshared.byteSize()).copyFrom(unshared);
+            offset += Long.BYTES + unshared.byteSize();
+            if (i == 7) {
+                MemoryAccess.setLongAtOffset(sstable, offset, -1);
+                offset += Long.BYTES;
+            } else {
+                MemorySegment value = segment(value(i));
+                MemoryAccess.setLongAtOffset(sstable, offset, value.byteSize());
+                sstable.asSlice(offset + Long.BYTES, value.byteSize()).copyFrom(value);
+                offset += Long.BYTES + value.byteSize();
+            }
+            previousKey = key;
+        }
+        for (long restart : restarts) {
+            MemoryAccess.setLongAtOffset(sstable, offset, restart);
+            offset += Long.BYTES;
+        }
+        MemoryAccess.setLongAtOffset(sstable, offset, restartCount);
+        offset += Long.BYTES;
+
+        long indexStart = offset;
+        MemoryAccess.setLongAtOffset(sstable, indexStart, headerSize);
+        MemoryAccess.setLongAtOffset(sstable, indexStart + Long.BYTES, 0);
+        MemoryAccess.setLongAtOffset(sstable, indexStart + 2 * Long.BYTES, indexStart + 3 * Long.BYTES);
+        offset = indexStart + 3 * Long.BYTES;
+        MemoryAccess.setLongAtOffset(sstable, offset, key(0).byteSize());
+        sstable.asSlice(offset + Long.BYTES, key(0).byteSize()).copyFrom(key(0));
+        offset += Long.BYTES + key(0).byteSize();
+        MemoryAccess.setLongAtOffset(sstable, offset, offset);
+        offset += Long.BYTES;
+
+        MemoryAccess.setLongAtOffset(sstable, 0, 1);
+        MemoryAccess.setLongAtOffset(sstable, 8, count);
+        MemoryAccess.setLongAtOffset(sstable, 16, Storage.FLAG_TOMBSTONES | Storage.FLAG_SHARED_KEY_PREFIXES);
+        MemoryAccess.setLongAtOffset(sstable, 24, 1);
+        MemoryAccess.setLongAtOffset(sstable, 32, indexStart);
+        Files.write(file, sstable.asSlice(0, offset).toByteArray());
+    }
+
+    // (fileVersion)(entryCount)(flags)((entryPosition)...)|((keySize/key/valueSize/value)...)
+    private static void writeDenseIndexFile(Path file, int count) throws IOException {
+        long dataStart = 3L * Long.BYTES + (long) count * Long.BYTES;
+        long size = dataStart;
+        for (int i = 0; i < count; i++) {
+            size += 2L * Long.BYTES + key(i).byteSize() + segment(value(i)).byteSize();
+        }
+        MemorySegment sstable = MemorySegment.ofArray(new byte[(int) size]);
+        MemoryAccess.setLongAtOffset(sstable, 8, count);
+        long offset = dataStart;
+        for (int i = 0; i < count; i++) {
+            MemoryAccess.setLongAtOffset(sstable, 3L * Long.BYTES + (long) i * Long.BYTES, offset);
+            offset += Storage.writeEntry(sstable, offset, entry(i));
+        }
+        Files.write(file, sstable.toByteArray());
+    }
+
+    private static void assertRange(Iterator<Entry<MemorySegment>> iterator, int from, int to) {
+        for (int i = from; i < to; i++) {
+            Assertions.assertTrue(iterator.hasNext());
+            Entry<MemorySegment> entry = iterator.next();
+            Assertions.assertEquals(string(key(i)), string(entry.key()));
+            Assertions.assertEquals(value(i), string(entry.value()));
+        }
+        Assertions.assertFalse(iterator.hasNext());
+    }
+
+    private static void assertJsonRange(Iterator<Entry<MemorySegment>> iterator, int from, int to) {
+        for (int i = from; i < to; i++) {
+            Assertions.assertTrue(iterator.hasNext());
+            Entry<MemorySegment> entry = iterator.next();
+            Assertions.assertEquals(string(key(i)), string(entry.key()));
+            Assertions.assertEquals(json(i), string(entry.value()));
+        }
+        Assertions.assertFalse(iterator.hasNext());
+    }
+
+    private static Entry<MemorySegment> jsonEntry(int index) {
+        return new BaseEntry<>(key(index), segment(json(index)));
+    }
+
+    private static String json(int index) {
+        return "{\"id\":" + index + ",\"name\":\"user" + index + "\",\"active\":" + (index % 2 == 0)
+                + ",\"tags\":[\"alpha\",\"beta\",\"gamma\"],\"score\":" + index % 100 + "}";
+    }
+
+    private static Entry<MemorySegment> entry(int index) {
+        return new BaseEntry<>(key(index), segment(value(index)));
+    }
+
+    private static String value(int index) {
+        return String.format("v%08d", index);
+    }
+}
@@ -0,0 +1,139 @@
+package ru.mail.polis.artyomdrozdov;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static ru.mail.polis.artyomdrozdov.Fixtures.key;
+import static ru.mail.polis.artyomdrozdov.Fixtures.newDao;
+import static ru.mail.polis.artyomdrozdov.Fixtures.segment;
+import static ru.mail.polis.artyomdrozdov.Fixtures.string;
+
+public class ChecksumTest {
+
+    private static final int COUNT = 10_000;
+
+    @Test
+    void scrubFindsCorruptedBlock(@TempDir Path path) throws Exception {
+        Path file = writeFile(path, Config.Compression.NONE);
+        try (MemorySegmentDao dao = newDao(path, Config.Compression.NONE)) {
+            dao.scrubAsync(Long.MAX_VALUE).get();
+        }
+
+        // a byte in the middle of the blocks, the header and the footer are intact
+        corrupt(file, Files.size(file) / 2);
+        try (MemorySegmentDao dao = newDao(path, Config.Compression.NONE)) {
+            CompletableFuture<Void> scrub = dao.scrubAsync(Long.MAX_VALUE);
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class, scrub::get);
+            Assertions.assertInstanceOf(CorruptedSSTableException.class, e.getCause());
+        }
+    }
+
+    @Test
+    void scrubVerifiesCompressedBlocks(@TempDir Path path) throws Exception {
+        writeFile(path, Config.Compression.DEFLATE);
+        try (MemorySegmentDao dao = newDao(path, Config.Compression.DEFLATE)) {
+            dao.scrubAsync(Long.MAX_VALUE).get();
+        }
+    }
+
+    @Test
+    void corruptedHeaderFailsLoad(@TempDir Path path) throws IOException {
+        Path file = writeFile(path, Config.Compression.NONE);
+        // entryCount
+        corrupt(file, 8);
+        Assertions.assertThrows(CorruptedSSTableException.class, () -> newDao(path, Config.Compression.NONE));
+    }
+
+    @Test
+    void corruptedFooterFailsLoad(@TempDir Path path) throws IOException {
+        Path file = writeFile(path, Config.Compression.NONE);
+        // the last key
+        corrupt(file, Files.size(file) - 2 * Long.BYTES);
+        Assertions.assertThrows(CorruptedSSTableException.class, () -> newDao(path, Config.Compression.NONE));
+    }
+
+    @Test
+    void reloadsVerifyAddedFilesOnly(@TempDir Path path) throws Exception {
+        Path file = writeFile(path, Config.Compression.NONE);
+        try (MemorySegmentDao dao = newDao(path, Config.Compression.NONE)) {
+            // the last key of the loaded file, which would fail its load
+            corruptMapped(file, Files.size(file) - 2 * Long.BYTES);
+            dao.upsert(new BaseEntry<>(key(COUNT), segment("value" + COUNT)));
+            dao.flush();
+            Assertions.assertEquals("value" + COUNT, string(dao.get(key(COUNT)).value()));
+
+            // scrub verifies every file in full
+            CompletableFuture<Void> scrub = dao.scrubAsync(Long.MAX_VALUE);
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class, scrub::get);
+            Assertions.assertInstanceOf(CorruptedSSTableException.class, e.getCause());
+        }
+    }
+
+    @Test
+    void scrubIsThrottled() {
+        long second = TimeUnit.SECONDS.toNanos(1);
+        // two seconds worth of bytes are verified in a second, so scrub waits for another one
+        Assertions.assertEquals(second, Storage.scrubPauseNanos(8192, 4096, second));
+        Assertions.assertEquals(0, Storage.scrubPauseNanos(4096, 4096, second));
+        Assertions.assertTrue(Storage.scrubPauseNanos(4096, 4096, 2 * second) < 0);
+        Assertions.assertEquals(0, Storage.scrubPauseNanos(1 << 30, Long.MAX_VALUE, 0));
+    }
+
+    @Test
+    void closeStopsScrubs(@TempDir Path path) throws Exception {
+        writeFile(path, Config.Compression.NONE);
+        CompletableFuture<Void> first;
+        CompletableFuture<Void> queued;
+        try (MemorySegmentDao dao = newDao(path, Config.Compression.NONE)) {
+            first = dao.scrubAsync(1);
+            // waits for the first one, which takes hours at this rate
+            queued = dao.scrubAsync(1);
+        }
+        // the first one is either interrupted or dropped before it started
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> first.get(1, TimeUnit.MINUTES));
+        Assertions.assertTrue(e.getCause() instanceof InterruptedException
+                || e.getCause() instanceof CancellationException, e.getCause().toString());
+        e = Assertions.assertThrows(ExecutionException.class, () -> queued.get(1, TimeUnit.MINUTES));
+        Assertions.assertInstanceOf(CancellationException.class, e.getCause());
+    }
+
+    private static Path writeFile(Path path, Config.Compression compression) throws IOException {
+        try (MemorySegmentDao dao = newDao(path, compression)) {
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(new BaseEntry<>(key(i), segment("value" + i)));
+            }
+        }
+        return path.resolve("data0.dat");
+    }
+
+    // in place, so the file stays mapped by an open dao
+    private static void corruptMapped(Path file, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate(1);
+            channel.read(data, offset);
+            data.put(0, (byte) (data.get(0) ^ 1));
+            data.rewind();
+            channel.write(data, offset);
+        }
+    }
+
+    private static void corrupt(Path file, long offset) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        data[(int) offset] ^= 1;
+        Files.write(file, data);
+    }
+}
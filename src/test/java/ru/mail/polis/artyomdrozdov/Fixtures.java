@@ -0,0 +1,36 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ru.mail.polis.Config;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+// daos, keys and values shared by the storage tests
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static MemorySegmentDao newDao(Path path) throws IOException {
+        return new MemorySegmentDao(new Config(path, 1 << 24));
+    }
+
+    static MemorySegmentDao newDao(Path path, Config.Compression compression) throws IOException {
+        return new MemorySegmentDao(new Config(path, 1 << 24, compression));
+    }
+
+    // keys of the same length, so their order is the order of indexes
+    static MemorySegment key(int index) {
+        return segment(String.format("k%08d", index));
+    }
+
+    static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String string(MemorySegment data) {
+        return new String(data.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
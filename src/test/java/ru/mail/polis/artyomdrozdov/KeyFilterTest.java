@@ -0,0 +1,77 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ru.mail.polis.artyomdrozdov.Fixtures.key;
+import static ru.mail.polis.artyomdrozdov.Fixtures.segment;
+import static ru.mail.polis.artyomdrozdov.Fixtures.string;
+
+public class KeyFilterTest {
+
+    private static final int FILES = 30;
+    private static final int COUNT = 3_000;
+
+    @Test
+    void pointLookupsAcrossFiles(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = new MemorySegmentDao(new Config(path, 1 << 24))) {
+            for (int file = 0; file < FILES; file++) {
+                for (int i = file; i < COUNT; i += FILES) {
+                    dao.upsert(new BaseEntry<>(key(i), key(i)));
+                }
+                dao.flush();
+            }
+            // filters are checked before range tombstones of the same file
+            dao.deleteRange(key(100), key(200));
+            dao.flush();
+
+            List<MemorySegment> keys = new ArrayList<>();
+            for (int i = 0; i < COUNT; i++) {
+                Entry<MemorySegment> entry = dao.get(key(i));
+                if (i >= 100 && i < 200) {
+                    Assertions.assertNull(entry);
+                } else {
+                    Assertions.assertEquals(string(key(i)), string(entry.value()));
+                }
+                Assertions.assertNull(dao.get(segment("missing" + i)));
+                keys.add(key(i));
+            }
+
+            List<Entry<MemorySegment>> entries = dao.getAll(keys);
+            Assertions.assertNull(entries.get(150));
+            Assertions.assertEquals(string(key(2999)), string(entries.get(2999).value()));
+        }
+    }
+
+    @Test
+    void falsePositiveRate() {
+        BloomFilter.Builder builder = new BloomFilter.Builder(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            MemorySegment key = key(i);
+            builder.add(key, key.byteSize());
+        }
+        MemorySegment filter = MemorySegment.ofArray(new byte[(int) builder.byteSize()]);
+        builder.writeTo(filter, 0);
+
+        int falsePositives = 0;
+        for (int i = 0; i < COUNT; i++) {
+            MemorySegment key = key(i);
+            Assertions.assertTrue(BloomFilter.mightContain(filter, key, key.byteSize()));
+            MemorySegment missing = segment("missing" + i);
+            if (BloomFilter.mightContain(filter, missing, missing.byteSize())) {
+                falsePositives++;
+            }
+        }
+        Assertions.assertTrue(falsePositives < COUNT * 0.03, falsePositives + " false positives");
+    }
+}
@@ -0,0 +1,76 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Cursor;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import static ru.mail.polis.artyomdrozdov.Fixtures.key;
+import static ru.mail.polis.artyomdrozdov.Fixtures.newDao;
+import static ru.mail.polis.artyomdrozdov.Fixtures.segment;
+import static ru.mail.polis.artyomdrozdov.Fixtures.string;
+
+public class KeyRangeTest {
+
+    private static final int FILES = 10;
+    private static final int FILE_ENTRIES = 100;
+
+    @Test
+    void timeOrderedFiles(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int file = 0; file < FILES; file++) {
+                for (int i = file * FILE_ENTRIES; i < (file + 1) * FILE_ENTRIES; i++) {
+                    dao.upsert(new BaseEntry<>(key(i), key(i)));
+                }
+                dao.flush();
+            }
+            // a file without entries
+            dao.deleteRange(segment("z"), null);
+            dao.flush();
+        }
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            int count = FILES * FILE_ENTRIES;
+            for (int i = 0; i < count; i++) {
+                Assertions.assertEquals(string(key(i)), string(dao.get(key(i)).value()));
+            }
+            Assertions.assertNull(dao.get(segment("a")));
+            Assertions.assertNull(dao.get(segment("k00000099x")));
+            Assertions.assertNull(dao.get(segment("z")));
+
+            // ranges across file bounds, exactly at them and between them
+            assertRange(dao.get(key(150), key(420)), 150, 420);
+            assertRange(dao.get(key(199), key(201)), 199, 201);
+            assertRange(dao.get(key(200), key(300)), 200, 300);
+            assertRange(dao.get(segment("k00000099x"), key(101)), 100, 101);
+            assertRange(dao.get(null, key(1)), 0, 1);
+            assertRange(dao.get(key(count - 1), null), count - 1, count);
+            assertRange(dao.get(segment("z"), null), 0, 0);
+            try (Cursor<Entry<MemorySegment>> cursor = dao.cursor(segment("k000003"), segment("k000004"))) {
+                assertRange(cursor, 300, 400);
+            }
+            assertRange(dao.prefix(segment("k000003")), 300, 400);
+
+            Iterator<Entry<MemorySegment>> descending = dao.getDescending(key(250), key(350));
+            for (int i = 349; i >= 250; i--) {
+                Assertions.assertEquals(string(key(i)), string(descending.next().key()));
+            }
+            Assertions.assertFalse(descending.hasNext());
+        }
+    }
+
+    private static void assertRange(Iterator<Entry<MemorySegment>> iterator, int from, int to) {
+        for (int i = from; i < to; i++) {
+            Assertions.assertTrue(iterator.hasNext());
+            Assertions.assertEquals(string(key(i)), string(iterator.next().key()));
+        }
+        Assertions.assertFalse(iterator.hasNext());
+    }
+}
@@ -0,0 +1,129 @@
+package ru.mail.polis.artyomdrozdov;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static ru.mail.polis.artyomdrozdov.Fixtures.key;
+import static ru.mail.polis.artyomdrozdov.Fixtures.newDao;
+import static ru.mail.polis.artyomdrozdov.Fixtures.segment;
+import static ru.mail.polis.artyomdrozdov.Fixtures.string;
+
+public class ManifestTest {
+
+    private static final int FILES = 3;
+    private static final int FILE_ENTRIES = 100;
+
+    @Test
+    void tornEditIsIgnored(@TempDir Path path) throws IOException {
+        writeFiles(path);
+        long manifestSize = Files.size(path.resolve("MANIFEST"));
+        // a part of the next record
+        Files.write(path.resolve("MANIFEST"), new byte[]{42, 0, 0}, StandardOpenOption.APPEND);
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            assertEntries(dao, FILES * FILE_ENTRIES);
+        }
+        Assertions.assertEquals(manifestSize, Files.size(path.resolve("MANIFEST")));
+    }
+
+    @Test
+    void unreferencedFilesAreDeleted(@TempDir Path path) throws IOException {
+        writeFiles(path);
+        // a compacted file which was not deleted and an unfinished flush
+        Files.copy(path.resolve("data1.dat"), path.resolve("data7.dat"));
+        Files.write(path.resolve("data3.dat.tmp"), new byte[]{1, 2, 3});
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            assertEntries(dao, FILES * FILE_ENTRIES);
+            dao.upsert(new BaseEntry<>(key(-1), key(-1)));
+        }
+        Assertions.assertEquals(List.of("data0.dat", "data1.dat", "data2.dat", "data3.dat"), dataFiles(path));
+    }
+
+    @Test
+    void compactionReplacesFiles(@TempDir Path path) throws IOException {
+        writeFiles(path);
+        try (MemorySegmentDao dao = newDao(path)) {
+            dao.compact();
+            dao.upsert(new BaseEntry<>(key(-1), key(-1)));
+        }
+        Assertions.assertEquals(List.of("data3.dat", "data4.dat"), dataFiles(path));
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            assertEntries(dao, FILES * FILE_ENTRIES);
+            Assertions.assertEquals(string(key(-1)), string(dao.get(key(-1)).value()));
+        }
+    }
+
+    @Test
+    void filesAfterGapAreMigrated(@TempDir Path path) throws IOException {
+        writeFiles(path);
+        // files written before the manifest, the middle one is lost
+        Files.delete(path.resolve("MANIFEST"));
+        Files.delete(path.resolve("data1.dat"));
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            Assertions.assertEquals(string(key(0)), string(dao.get(key(0)).value()));
+            Assertions.assertNull(dao.get(key(FILE_ENTRIES)));
+            Assertions.assertEquals(string(key(2 * FILE_ENTRIES)), string(dao.get(key(2 * FILE_ENTRIES)).value()));
+        }
+        Assertions.assertTrue(Files.exists(path.resolve("MANIFEST")));
+    }
+
+    @Test
+    void manifestIsRewritten(@TempDir Path path) throws IOException {
+        Manifest.create(path, List.of(), 0);
+        long editSize = 0;
+        // every edit replaces the previous sstable like a compaction
+        for (int i = 0; i < 200; i++) {
+            Manifest manifest = Manifest.load(path);
+            Assertions.assertEquals(i, manifest.nextId());
+            long size = Files.size(path.resolve("MANIFEST"));
+            manifest.apply(List.of(new Manifest.SSTable(i, 0, key(i), key(i))), i == 0 ? List.of() : List.of(i - 1L));
+            editSize = Files.size(path.resolve("MANIFEST")) - size;
+        }
+
+        Manifest manifest = Manifest.load(path);
+        Assertions.assertEquals(200, manifest.nextId());
+        Assertions.assertEquals(1, manifest.sstables().size());
+        Assertions.assertEquals(string(key(199)), string(manifest.sstables().get(0).firstKey()));
+        // 200 edits are not kept
+        Assertions.assertTrue(Files.size(path.resolve("MANIFEST")) < 100 * editSize);
+    }
+
+    private static void writeFiles(Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int file = 0; file < FILES; file++) {
+                for (int i = file * FILE_ENTRIES; i < (file + 1) * FILE_ENTRIES; i++) {
+                    dao.upsert(new BaseEntry<>(key(i), key(i)));
+                }
+                dao.flush();
+            }
+        }
+    }
+
+    private static void assertEntries(MemorySegmentDao dao, int count) {
+        for (int i = 0; i < count; i++) {
+            Assertions.assertEquals(string(key(i)), string(dao.get(key(i)).value()));
+        }
+        Assertions.assertNull(dao.get(key(count)));
+    }
+
+    private static List<String> dataFiles(Path path) throws IOException {
+        try (Stream<Path> files = Files.list(path)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith("data"))
+                    .sorted()
+                    .toList();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Cursor;
+import ru.mail.polis.Dao;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static ru.mail.polis.artyomdrozdov.Fixtures.key;
+import static ru.mail.polis.artyomdrozdov.Fixtures.segment;
+import static ru.mail.polis.artyomdrozdov.Fixtures.string;
+
+public class MemoryVersionsTest {
+
+    private static final int WRITES = 20_000;
+    // far less than the writes take if every version is kept
+    private static final long FLUSH_THRESHOLD = 1 << 20;
+
+    @Test
+    void openReaderKeepsSingleVersion(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            dao.upsert(new BaseEntry<>(key(0), value(-1)));
+            try (Cursor<Entry<MemorySegment>> cursor = dao.cursor(null, null)) {
+                for (int i = 0; i < WRITES; i++) {
+                    dao.upsert(new BaseEntry<>(key(0), value(i)));
+                }
+                Assertions.assertEquals(string(value(-1)), string(cursor.next().value()));
+            }
+            Assertions.assertEquals(string(value(WRITES - 1)), string(dao.get(key(0)).value()));
+            Assertions.assertEquals(0, files(path));
+        }
+    }
+
+    @Test
+    void openSnapshotKeepsSingleVersion(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < 10; i++) {
+                dao.upsert(new BaseEntry<>(key(i), value(-1)));
+            }
+            try (Dao<MemorySegment, Entry<MemorySegment>> snapshot = dao.snapshot()) {
+                for (int i = 0; i < WRITES; i++) {
+                    dao.upsert(new BaseEntry<>(key(i % 10), value(i)));
+                    // memory written after the snapshot keeps nothing for it
+                    if (i == WRITES / 2) {
+                        dao.flush();
+                    }
+                }
+                for (int i = 0; i < 10; i++) {
+                    Assertions.assertEquals(string(value(-1)), string(snapshot.get(key(i)).value()));
+                }
+            }
+            Assertions.assertEquals(string(value(WRITES - 1)), string(dao.get(key(9)).value()));
+            Assertions.assertEquals(1, files(path));
+        }
+    }
+
+    @Test
+    void partlyReadStreamKeepsSingleVersion(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < 10; i++) {
+                dao.upsert(new BaseEntry<>(key(i), value(-1)));
+            }
+            try (Stream<Entry<MemorySegment>> stream = dao.stream(null, null)) {
+                Iterator<Entry<MemorySegment>> iterator = stream.iterator();
+                Assertions.assertEquals(string(value(-1)), string(iterator.next().value()));
+                for (int i = 0; i < WRITES; i++) {
+                    dao.upsert(new BaseEntry<>(key(i % 10), value(i)));
+                }
+                for (int i = 1; i < 10; i++) {
+                    Assertions.assertEquals(string(value(-1)), string(iterator.next().value()));
+                }
+                Assertions.assertFalse(iterator.hasNext());
+            }
+            Assertions.assertEquals(0, files(path));
+        }
+    }
+
+    @Test
+    void readersSeeTheirVersions(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            List<Cursor<Entry<MemorySegment>>> cursors = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                dao.upsert(new BaseEntry<>(key(0), value(i)));
+                cursors.add(dao.cursor(null, null));
+                for (int j = 0; j < WRITES / 10; j++) {
+                    dao.upsert(new BaseEntry<>(key(0), value(-j)));
+                }
+            }
+            for (int i = 0; i < cursors.size(); i++) {
+                try (Cursor<Entry<MemorySegment>> cursor = cursors.get(i)) {
+                    Assertions.assertEquals(string(value(i)), string(cursor.next().value()));
+                }
+            }
+            Assertions.assertEquals(0, files(path));
+        }
+    }
+
+    @Test
+    void readersSeeWholeBatchesOfConcurrentWriters(@TempDir Path path) throws Exception {
+        int batches = 2_000;
+        int batchSize = 10;
+        try (MemorySegmentDao dao = newDao(path)) {
+            ExecutorService writers = Executors.newFixedThreadPool(2);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int writer = 0; writer < 2; writer++) {
+                    futures.add(writers.submit(() -> {
+                        for (int i = 0; i < batches; i++) {
+                            List<Entry<MemorySegment>> batch = new ArrayList<>();
+                            for (int j = 0; j < batchSize; j++) {
+                                batch.add(new BaseEntry<>(key(j), value(i)));
+                            }
+                            dao.upsertAll(batch);
+                        }
+                    }));
+                }
+                while (!futures.stream().allMatch(Future::isDone)) {
+                    try (Cursor<Entry<MemorySegment>> cursor = dao.cursor(null, null)) {
+                        List<String> values = new ArrayList<>();
+                        cursor.forEachRemaining(entry -> values.add(string(entry.value())));
+                        Assertions.assertTrue(values.isEmpty() || values.size() == batchSize, values::toString);
+                        Assertions.assertTrue(values.stream().distinct().count() <= 1, values::toString);
+                    }
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                writers.shutdownNow();
+            }
+        }
+    }
+
+    private static MemorySegmentDao newDao(Path path) throws IOException {
+        return new MemorySegmentDao(new Config(path, FLUSH_THRESHOLD));
+    }
+
+    private static MemorySegment value(int index) {
+        return segment(String.format("value%0100d", index));
+    }
+
+    // sstables written by flushes
+    private static long files(Path path) throws IOException {
+        try (Stream<Path> files = Files.list(path)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("data")).count();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Entry;
+import ru.mail.polis.MergeOperator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+
+import static ru.mail.polis.artyomdrozdov.Fixtures.segment;
+
+public class MergeOperatorTest {
+
+    private static final MergeOperator<MemorySegment> COUNTER = (value, operand) ->
+            number((value == null ? 0 : MemoryAccess.getLong(value)) + MemoryAccess.getLong(operand));
+
+    @Test
+    void incrementsInMemory(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < 10; i++) {
+                dao.merge(entry("a", 1));
+                dao.merge(entry("b", 2));
+            }
+
+            Assertions.assertEquals(10, count(dao.get(segment("a"))));
+            Assertions.assertEquals(20, count(dao.get(segment("b"))));
+            Iterator<Entry<MemorySegment>> iterator = dao.all();
+            Assertions.assertEquals(10, count(iterator.next()));
+            Assertions.assertEquals(20, count(iterator.next()));
+            Assertions.assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    void operandsAcrossFiles(@TempDir Path path) throws IOException {
+        MemorySegmentDao dao = newDao(path);
+        dao.upsert(entry("a", 100));
+        dao.flush();
+        for (int i = 0; i < 3; i++) {
+            dao.merge(entry("a", 1));
+            dao.merge(entry("b", 1));
+            dao.flush();
+        }
+        dao.merge(entry("a", 1));
+
+        Assertions.assertEquals(104, count(dao.get(segment("a"))));
+        Assertions.assertEquals(3, count(dao.get(segment("b"))));
+        List<Entry<MemorySegment>> all = dao.getAll(List.of(segment("b"), segment("a")));
+        Assertions.assertEquals(3, count(all.get(0)));
+        Assertions.assertEquals(104, count(all.get(1)));
+        Assertions.assertTrue(dao.compareAndSet(segment("a"), number(104), entry("a", 0)));
+        dao.merge(entry("a", 7));
+        dao.close();
+
+        dao = newDao(path);
+        Assertions.assertEquals(7, count(dao.get(segment("a"))));
+        dao.compact();
+        Assertions.assertEquals(7, count(dao.get(segment("a"))));
+        Assertions.assertEquals(3, count(dao.get(segment("b"))));
+        dao.close();
+    }
+
+    @Test
+    void operandAfterRemove(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            dao.upsert(entry("a", 100));
+            dao.flush();
+            dao.upsert(new BaseEntry<>(segment("a"), null));
+            dao.flush();
+            dao.merge(entry("a", 5));
+            dao.flush();
+
+            Assertions.assertEquals(5, count(dao.get(segment("a"))));
+            dao.compact();
+            Assertions.assertEquals(5, count(dao.get(segment("a"))));
+        }
+    }
+
+    @Test
+    void mergeIsNotSupportedWithoutOperator(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = new MemorySegmentDao(new Config(path, 1 << 20))) {
+            Assertions.assertThrows(UnsupportedOperationException.class, () -> dao.merge(entry("a", 1)));
+        }
+    }
+
+    @Test
+    void storedOperandsRequireOperator(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            dao.merge(entry("a", 1));
+        }
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new MemorySegmentDao(new Config(path, 1 << 20)));
+        try (MemorySegmentDao dao = newDao(path)) {
+            Assertions.assertEquals(1, count(dao.get(segment("a"))));
+        }
+    }
+
+    @Test
+    void combinedOperandIsNotNull(@TempDir Path path) throws IOException {
+        MergeOperator<MemorySegment> operator = new MergeOperator<>() {
+            @Override
+            public MemorySegment merge(MemorySegment value, MemorySegment operand) {
+                return operand;
+            }
+
+            @Override
+            public MemorySegment combine(MemorySegment older, MemorySegment newer) {
+                return null;
+            }
+        };
+        try (MemorySegmentDao dao = new MemorySegmentDao(new Config(path, 1 << 20), operator)) {
+            dao.merge(entry("a", 1));
+            Assertions.assertThrows(NullPointerException.class, () -> dao.merge(entry("a", 2)));
+        }
+    }
+
+    private static MemorySegmentDao newDao(Path path) throws IOException {
+        return new MemorySegmentDao(new Config(path, 1 << 20), COUNTER);
+    }
+
+    private static Entry<MemorySegment> entry(String key, long value) {
+        return new BaseEntry<>(segment(key), number(value));
+    }
+
+    private static MemorySegment number(long value) {
+        MemorySegment segment = MemorySegment.ofArray(new byte[Long.BYTES]);
+        MemoryAccess.setLong(segment, value);
+        return segment;
+    }
+
+    private static long count(Entry<MemorySegment> entry) {
+        return MemoryAccess.getLong(entry.value());
+    }
+}
@@ -0,0 +1,61 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Dao;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static ru.mail.polis.artyomdrozdov.Fixtures.key;
+import static ru.mail.polis.artyomdrozdov.Fixtures.newDao;
+import static ru.mail.polis.artyomdrozdov.Fixtures.string;
+
+public class PointReadTest {
+
+    @Test
+    void daoReadsValuesInPlace(@TempDir Path path) throws IOException {
+        Entry<MemorySegment> entry;
+        List<Entry<MemorySegment>> entries;
+        try (MemorySegmentDao dao = newDao(path)) {
+            dao.upsert(new BaseEntry<>(key(0), key(0)));
+            dao.upsert(new BaseEntry<>(key(1), key(1)));
+            dao.flush();
+
+            entry = dao.get(key(0));
+            entries = dao.getAll(List.of(key(0), key(1)));
+            Assertions.assertEquals(string(key(0)), string(entry.value()));
+            Assertions.assertEquals(string(key(1)), string(entries.get(1).value()));
+        }
+        // the values are slices of the sstable, which is unmapped on close
+        Assertions.assertThrows(IllegalStateException.class, entry.value()::toByteArray);
+        Assertions.assertThrows(IllegalStateException.class, entries.get(1).value()::toByteArray);
+    }
+
+    @Test
+    void snapshotReadsValuesInPlace(@TempDir Path path) throws IOException {
+        Entry<MemorySegment> entry;
+        List<Entry<MemorySegment>> entries;
+        try (MemorySegmentDao dao = newDao(path)) {
+            dao.upsert(new BaseEntry<>(key(0), key(0)));
+            dao.upsert(new BaseEntry<>(key(1), key(1)));
+            dao.flush();
+
+            try (Dao<MemorySegment, Entry<MemorySegment>> snapshot = dao.snapshot()) {
+                entry = snapshot.get(key(0));
+                entries = snapshot.getAll(List.of(key(0), key(1)));
+                dao.compact();
+                Assertions.assertEquals(string(key(0)), string(entry.value()));
+                Assertions.assertEquals(string(key(1)), string(entries.get(1).value()));
+            }
+        }
+        // the values are slices of the sstable, which is unmapped once the snapshot is closed
+        Assertions.assertThrows(IllegalStateException.class, entry.value()::toByteArray);
+        Assertions.assertThrows(IllegalStateException.class, entries.get(1).value()::toByteArray);
+    }
+}
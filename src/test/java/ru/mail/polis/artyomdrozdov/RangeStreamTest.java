@@ -0,0 +1,141 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static ru.mail.polis.artyomdrozdov.Fixtures.key;
+import static ru.mail.polis.artyomdrozdov.Fixtures.newDao;
+import static ru.mail.polis.artyomdrozdov.Fixtures.string;
+
+public class RangeStreamTest {
+
+    private static final int COUNT = 1000;
+
+    @Test
+    void shortCircuitedStreamReleasesStorage(@TempDir Path path) throws IOException {
+        MemorySegment value;
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(new BaseEntry<>(key(i), key(i)));
+            }
+            dao.flush();
+
+            try (Stream<Entry<MemorySegment>> stream = dao.stream(null, null)) {
+                value = stream.parallel().filter(entry -> string(entry.key()).endsWith("7")).findFirst()
+                        .orElseThrow()
+                        .value();
+            }
+            Assertions.assertEquals(string(key(7)), string(value));
+        }
+        // the value is a slice of the sstable, which is unmapped once nothing pins it
+        Assertions.assertThrows(IllegalStateException.class, value::toByteArray);
+    }
+
+    @Test
+    void consumedStreamReleasesStorage(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(new BaseEntry<>(key(i), key(i)));
+            }
+            dao.flush();
+            dao.upsert(new BaseEntry<>(key(COUNT), key(COUNT)));
+            dao.flush();
+
+            // never closed, the stream lets go of its state once every part is read
+            List<MemorySegment> values = dao.stream(null, null).parallel().map(Entry::value).toList();
+            Assertions.assertEquals(COUNT + 1, values.size());
+            dao.compact();
+
+            Assertions.assertThrows(IllegalStateException.class, values.get(0)::toByteArray);
+        }
+    }
+
+    @Test
+    void readIteratorReleasesStorage(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDaoWithTwoFiles(path)) {
+            // never closed, as callers of get() do not
+            Iterator<Entry<MemorySegment>> iterator = dao.get(null, null);
+            MemorySegment value = iterator.next().value();
+            dao.compact();
+            // the compacted sstables are mapped while the iterator is read
+            Assertions.assertEquals(string(key(0)), string(value));
+            iterator.forEachRemaining(entry -> { });
+
+            Assertions.assertThrows(IllegalStateException.class, value::toByteArray);
+        }
+    }
+
+    @Test
+    void lostIteratorReleasesStorage(@TempDir Path path) throws Exception {
+        try (MemorySegmentDao dao = newDaoWithTwoFiles(path)) {
+            MemorySegment value = firstValue(dao);
+            dao.compact();
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (isMapped(value) && System.nanoTime() < deadline) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            Assertions.assertFalse(isMapped(value));
+            Assertions.assertEquals(string(key(0)), string(dao.get(null, null).next().value()));
+        }
+    }
+
+    @Test
+    void memoryIsSized(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(new BaseEntry<>(key(i), key(i)));
+            }
+            dao.flush();
+            for (int i = COUNT; i < 2 * COUNT; i++) {
+                dao.upsert(new BaseEntry<>(key(i), key(i)));
+            }
+
+            try (Stream<Entry<MemorySegment>> stream = dao.stream(key(COUNT), null)) {
+                Spliterator<Entry<MemorySegment>> spliterator = stream.spliterator();
+                Assertions.assertEquals(COUNT, spliterator.estimateSize());
+            }
+            try (Stream<Entry<MemorySegment>> stream = dao.stream(null, null)) {
+                Assertions.assertEquals(2 * COUNT, stream.spliterator().estimateSize());
+            }
+        }
+    }
+
+    private static MemorySegmentDao newDaoWithTwoFiles(Path path) throws IOException {
+        MemorySegmentDao dao = newDao(path);
+        for (int i = 0; i < COUNT; i++) {
+            dao.upsert(new BaseEntry<>(key(i), key(i)));
+        }
+        dao.flush();
+        dao.upsert(new BaseEntry<>(key(COUNT), key(COUNT)));
+        dao.flush();
+        return dao;
+    }
+
+    // the iterator is lost on return
+    private static MemorySegment firstValue(MemorySegmentDao dao) {
+        return dao.get(null, null).next().value();
+    }
+
+    private static boolean isMapped(MemorySegment value) {
+        try {
+            value.toByteArray();
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package ru.mail.polis.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.BaseEntry;
+import ru.mail.polis.Config;
+import ru.mail.polis.Cursor;
+import ru.mail.polis.Entry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static ru.mail.polis.artyomdrozdov.Fixtures.key;
+import static ru.mail.polis.artyomdrozdov.Fixtures.segment;
+import static ru.mail.polis.artyomdrozdov.Fixtures.string;
+
+public class ValueLogTest {
+
+    private static final int COUNT = 200;
+    private static final int LARGE_VALUE = 8 * 1024;
+    private static final long THRESHOLD = 4 * 1024;
+
+    @Test
+    void largeValuesAreSeparated(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(new BaseEntry<>(key(i), mixedValue(i)));
+            }
+        }
+        Assertions.assertEquals(List.of("values0.dat"), logs(path));
+        Assertions.assertTrue(Files.size(path.resolve("data0.dat")) < COUNT / 2 * LARGE_VALUE / 10);
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                Assertions.assertEquals(string(mixedValue(i)), string(dao.get(key(i)).value()));
+            }
+            Iterator<Entry<MemorySegment>> descending = dao.getDescending(null, null);
+            for (int i = COUNT - 1; i >= 0; i--) {
+                Assertions.assertEquals(string(mixedValue(i)), string(descending.next().value()));
+            }
+        }
+    }
+
+    @Test
+    void compactionKeepsLiveLogs(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(new BaseEntry<>(key(i), value(i, LARGE_VALUE)));
+            }
+            dao.flush();
+            dao.upsert(new BaseEntry<>(key(COUNT), value(COUNT, 10)));
+            dao.compact();
+        }
+        Assertions.assertEquals(List.of("values0.dat"), logs(path));
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                Assertions.assertEquals(string(value(i, LARGE_VALUE)), string(dao.get(key(i)).value()));
+            }
+        }
+    }
+
+    @Test
+    void compactionCollectsGarbage(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(new BaseEntry<>(key(i), value(i, LARGE_VALUE)));
+            }
+            dao.flush();
+            // most values of the first log become garbage
+            for (int i = 0; i < COUNT * 3 / 4; i++) {
+                dao.upsert(new BaseEntry<>(key(i), value(-i, LARGE_VALUE)));
+            }
+            dao.flush();
+            for (int i = COUNT * 3 / 4; i < COUNT * 7 / 8; i++) {
+                dao.upsert(new BaseEntry<>(key(i), null));
+            }
+            dao.flush();
+            dao.compact();
+        }
+        List<String> logs = logs(path);
+        Assertions.assertFalse(logs.contains("values0.dat"));
+        Assertions.assertTrue(logs.contains("values1.dat"));
+        long logBytes = 0;
+        for (String log : logs) {
+            logBytes += Files.size(path.resolve(log));
+        }
+        Assertions.assertTrue(logBytes <= (long) COUNT * 7 / 8 * LARGE_VALUE);
+
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < COUNT; i++) {
+                Entry<MemorySegment> entry = dao.get(key(i));
+                if (i < COUNT * 3 / 4) {
+                    Assertions.assertEquals(string(value(-i, LARGE_VALUE)), string(entry.value()));
+                } else if (i < COUNT * 7 / 8) {
+                    Assertions.assertNull(entry);
+                } else {
+                    Assertions.assertEquals(string(value(i, LARGE_VALUE)), string(entry.value()));
+                }
+            }
+        }
+    }
+
+    @Test
+    void closeSavesValuesOfStorage(@TempDir Path path) throws IOException {
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < 2; i++) {
+                dao.upsert(new BaseEntry<>(key(i), mixedValue(i)));
+            }
+        }
+        try (MemorySegmentDao dao = newDao(path)) {
+            // values are slices of the mapped log and sstable, they are saved on close without a flush before
+            try (Cursor<Entry<MemorySegment>> cursor = dao.cursor(key(0), null)) {
+                for (int i = 0; i < 2; i++) {
+                    dao.upsert(new BaseEntry<>(key(COUNT + i), cursor.next().value()));
+                }
+            }
+        }
+        try (MemorySegmentDao dao = newDao(path)) {
+            for (int i = 0; i < 2; i++) {
+                Assertions.assertEquals(string(mixedValue(i)), string(dao.get(key(COUNT + i)).value()));
+            }
+        }
+    }
+
+    private static List<String> logs(Path path) throws IOException {
+        try (Stream<Path> files = Files.list(path)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith("values"))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static MemorySegmentDao newDao(Path path) throws IOException {
+        return new MemorySegmentDao(
+                new Config(path, 1 << 24, Config.Compression.NONE, Config.IndexLayout.SORTED, THRESHOLD));
+    }
+
+    // every other value is small and stays in the sstable
+    private static MemorySegment mixedValue(int index) {
+        return value(index, index % 2 == 0 ? LARGE_VALUE : 10);
+    }
+
+    private static MemorySegment value(int index, int size) {
+        StringBuilder value = new StringBuilder(size);
+        value.append(index).append(':');
+        while (value.length() < size) {
+            value.append((char) ('a' + value.length() % 26));
+        }
+        return segment(value.toString());
+    }
+}
@@ -0,0 +1,155 @@
+package ru.mail.polis.stepanponomarev;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+public class TtlTest {
+
+    @Test
+    void expiredEntriesAreHidden(@TempDir Path path) throws IOException {
+        final LSMDao dao = new LSMDao(path);
+        try {
+            final long now = System.currentTimeMillis();
+            dao.upsert(entry("a", "old", now - 10_000));
+            dao.flush();
+            dao.upsert(entry("a", "expired", now - 5_000), Duration.ofSeconds(1));
+            dao.upsert(entry("b", "alive", now), Duration.ofHours(1));
+            dao.upsert(entry("c", "forever", now));
+
+            assertKeys(dao, "b", "c");
+            Assertions.assertNull(dao.get(segment("a")));
+            Assertions.assertEquals("alive", string(dao.get(segment("b")).value()));
+
+            dao.flush();
+            assertKeys(dao, "b", "c");
+            Assertions.assertNull(dao.get(segment("a")));
+        } finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void expiredEntriesSurviveReopen(@TempDir Path path) throws IOException {
+        final long now = System.currentTimeMillis();
+        LSMDao dao = new LSMDao(path);
+        dao.upsert(entry("a", "1", now));
+        dao.upsert(entry("b", "2", now - 5_000), Duration.ofSeconds(1));
+        dao.close();
+
+        dao = new LSMDao(path);
+        try {
+            assertKeys(dao, "a");
+            Assertions.assertNull(dao.get(segment("b")));
+        } finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void compactionDropsExpiredEntries(@TempDir Path path) throws IOException {
+        final LSMDao dao = new LSMDao(path);
+        try {
+            final long now = System.currentTimeMillis();
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(entry("key" + i, "value" + i, now - 5_000), Duration.ofSeconds(i % 2 == 0 ? 1 : 3600));
+            }
+            dao.flush();
+            final long sizeBefore = dataSize(path);
+
+            dao.compact();
+
+            Assertions.assertTrue(dataSize(path) < sizeBefore);
+            final Iterator<TimestampEntry> iterator = dao.get(null, null);
+            int count = 0;
+            while (iterator.hasNext()) {
+                iterator.next();
+                count++;
+            }
+            Assertions.assertEquals(50, count);
+        } finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void longTtlNeverExpires(@TempDir Path path) throws IOException {
+        final LSMDao dao = new LSMDao(path);
+        try {
+            final long now = System.currentTimeMillis();
+            dao.upsert(entry("a", "1", now), Duration.ofSeconds(Long.MAX_VALUE));
+            dao.upsert(entry("b", "2", now), Duration.ofMillis(Long.MAX_VALUE - now + 1));
+            dao.flush();
+
+            assertKeys(dao, "a", "b");
+            Assertions.assertThrows(
+                    IllegalArgumentException.class,
+                    () -> dao.upsert(entry("c", "3", now), Duration.ofSeconds(-1))
+            );
+        } finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void filesWithoutExpirationAreRead(@TempDir Path path) throws IOException {
+        // version 0 records are keySize/key/timestamp/valueSize/value, the index has no version
+        final Path sstableDir = Files.createDirectory(path.resolve("SSTable__T_1000_T__H_0"));
+        final byte[] key = "a".getBytes(StandardCharsets.UTF_8);
+        final byte[] value = "old".getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer data = ByteBuffer.allocate(3 * Long.BYTES + key.length + value.length)
+                .order(ByteOrder.nativeOrder());
+        data.putLong(key.length).put(key).putLong(1000).putLong(value.length).put(value);
+        Files.write(sstableDir.resolve("sstable.data"), data.array());
+        Files.write(sstableDir.resolve("sstable.index"), new byte[Long.BYTES]);
+
+        final LSMDao dao = new LSMDao(path);
+        try {
+            Assertions.assertEquals("old", string(dao.get(segment("a")).value()));
+            dao.upsert(entry("b", "new", System.currentTimeMillis()));
+            dao.compact();
+            assertKeys(dao, "a", "b");
+            Assertions.assertEquals("old", string(dao.get(segment("a")).value()));
+        } finally {
+            dao.close();
+        }
+    }
+
+    private static void assertKeys(LSMDao dao, String... keys) throws IOException {
+        final Iterator<TimestampEntry> iterator = dao.get(null, null);
+        for (String key : keys) {
+            Assertions.assertTrue(iterator.hasNext());
+            Assertions.assertEquals(key, string(iterator.next().key()));
+        }
+        Assertions.assertFalse(iterator.hasNext());
+    }
+
+    private static long dataSize(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static TimestampEntry entry(String key, String value, long timestamp) {
+        return new TimestampEntry(segment(key), segment(value), timestamp);
+    }
+
+    private static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(MemorySegment data) {
+        return new String(data.toByteArray(), StandardCharsets.UTF_8);
+    }
+}